@@ -0,0 +1,116 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.streaming.Chunker;
+import edu.yeditepe.cse471.p2p.util.HashUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Library hashing throughput on a synthetic tree: a copy of the old
+ * sequential path (1 MiB InputStream reads, String.format hex) against
+ * {@link LocalCatalogBuilder} at several pool sizes. A single SHA-256 pass
+ * over the same bytes is printed as the per-core ceiling; the catalog needs
+ * two digests per byte (whole file and chunk), so one thread tops out at
+ * about half of it and more threads only help with more cores.
+ *
+ * <p>Arguments: {@code [dir=temp dir] [files=24] [fileMiB=64] [threads=1,2,4]}.
+ * The tree is generated under {@code dir} if it does not exist yet and
+ * kept for later runs; runs are page-cache warm after the first.
+ */
+final class CatalogHashBench {
+    public static void main(String[] args) throws Exception {
+        Path root = args.length > 0 ? Path.of(args[0]) : Path.of(System.getProperty("java.io.tmpdir"), "catalog-hash-bench");
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 24;
+        int fileMiB = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        String[] threadCounts = (args.length > 3 ? args[3] : "1,2,4").split(",");
+
+        if (!Files.exists(root)) generate(root, files, fileMiB);
+        List<Path> paths;
+        try (var walk = Files.walk(root)) {
+            paths = walk.filter(Files::isRegularFile).toList();
+        }
+        double gb = 0;
+        for (Path p : paths) gb += Files.size(p) / 1e9;
+        System.out.printf("%d files, %.2f GB, %d cores%n", paths.size(), gb, Runtime.getRuntime().availableProcessors());
+
+        for (int rep = 0; rep < 3; rep++) {
+            long t0 = System.nanoTime();
+            for (Path p : paths) HashUtil.sha256Hex(p);
+            report("one SHA-256 pass", gb, t0);
+
+            t0 = System.nanoTime();
+            for (Path p : paths) oldHash(p, Chunker.CHUNK_SIZE);
+            report("old sequential", gb, t0);
+
+            for (String t : threadCounts) {
+                int threads = Integer.parseInt(t.trim());
+                t0 = System.nanoTime();
+                new LocalCatalogBuilder(threads).build(root);
+                report("builder, " + threads + " threads", gb, t0);
+            }
+        }
+    }
+
+    private static void report(String label, double gb, long t0) {
+        double secs = (System.nanoTime() - t0) / 1e9;
+        System.out.printf("%-22s %6.2f s  %6.3f GB/s%n", label, secs, gb / secs);
+    }
+
+    private static void generate(Path root, int files, int fileMiB) throws IOException {
+        Random rnd = new Random(7);
+        byte[] block = new byte[1 << 20];
+        for (int i = 0; i < files; i++) {
+            Path dir = root.resolve("s" + (i % 4)).resolve("d" + (i % 3));
+            Files.createDirectories(dir);
+            try (OutputStream out = Files.newOutputStream(dir.resolve("v" + i + ".mp4"))) {
+                for (int k = 0; k < fileMiB; k++) {
+                    rnd.nextBytes(block);
+                    out.write(block);
+                }
+            }
+        }
+    }
+
+    /** The hashing loop as it was before the pool: whole-file and chunk digests from 1 MiB stream reads. */
+    private static List<String> oldHash(Path file, int chunkSize) throws Exception {
+        MessageDigest whole = MessageDigest.getInstance("SHA-256");
+        MessageDigest chunk = MessageDigest.getInstance("SHA-256");
+        List<String> hashes = new ArrayList<>();
+        long inChunk = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[1 << 20];
+            int r;
+            while ((r = in.read(buf)) >= 0) {
+                whole.update(buf, 0, r);
+                int off = 0;
+                while (off < r) {
+                    int n = (int) Math.min(r - off, chunkSize - inChunk);
+                    chunk.update(buf, off, n);
+                    off += n;
+                    inChunk += n;
+                    if (inChunk == chunkSize) {
+                        hashes.add(oldHex(chunk.digest()));
+                        inChunk = 0;
+                    }
+                }
+            }
+        }
+        if (inChunk > 0) hashes.add(oldHex(chunk.digest()));
+        hashes.add(oldHex(whole.digest()));
+        return hashes;
+    }
+
+    private static String oldHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
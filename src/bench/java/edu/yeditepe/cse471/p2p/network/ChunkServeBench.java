@@ -0,0 +1,218 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.model.SharedFile;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkRequest;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkResponseHeader;
+import edu.yeditepe.cse471.p2p.streaming.Chunker;
+import edu.yeditepe.cse471.p2p.util.JsonUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chunk serving throughput and allocation: the old path (a RandomAccessFile
+ * and a fresh byte[] per chunk, copied through a BufferedOutputStream)
+ * against ControlServer's blocking and NIO engines, which send chunk bodies
+ * with FileChannel.transferTo. Clients send one-shot JSON CHUNK_REQUESTs,
+ * which every engine answers the same way.
+ *
+ * <p>Arguments: {@code [fileMiB=64] [requests=2000] [clients=4]}. Allocation
+ * is summed over all live threads, clients included; the clients are the
+ * same for every path, so the difference is the server's.
+ */
+final class ChunkServeBench {
+    public static void main(String[] args) throws Exception {
+        int fileMiB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        Path file = Files.createTempFile("serve-bench", ".mp4");
+        file.toFile().deleteOnExit();
+        byte[] block = new byte[1 << 20];
+        Random rnd = new Random(1);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < fileMiB; i++) {
+                rnd.nextBytes(block);
+                out.write(block);
+            }
+        }
+        SharedFile f = new SharedFile("ab".repeat(32), Files.size(file), file, "bench.mp4");
+        VersionedCatalog catalog = new VersionedCatalog();
+        catalog.put(f);
+
+        try (OldServer old = new OldServer(f)) {
+            run("old (byte[] per chunk)", old.port(), f, requests, clients);
+        }
+        for (String engine : new String[]{"blocking", "nio"}) {
+            int port = freePort();
+            System.setProperty("p2p.controlPort", String.valueOf(port));
+            System.setProperty("p2p.serverEngine", engine);
+            ControlServer server = new ControlServer(catalog);
+            server.start();
+            try {
+                run(engine + " (transferTo)", port, f, requests, clients);
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    private static void run(String label, int port, SharedFile f, int requests, int clients) throws Exception {
+        fetch(port, f, requests / 4, clients); // warm-up
+        long alloc0 = allocatedBytes();
+        long t0 = System.nanoTime();
+        long bytes = fetch(port, f, requests, clients);
+        double secs = (System.nanoTime() - t0) / 1e9;
+        long alloc = allocatedBytes() - alloc0;
+        System.out.printf("%-24s %8.1f MB/s  %8.1f KB allocated/chunk%n",
+                label, bytes / secs / 1e6, alloc / 1024.0 / requests);
+    }
+
+    private static long fetch(int port, SharedFile f, int requests, int clients) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        AtomicInteger next = new AtomicInteger();
+        try {
+            Future<?>[] done = new Future<?>[clients];
+            long[] bytes = new long[clients];
+            for (int c = 0; c < clients; c++) {
+                int slot = c;
+                done[c] = pool.submit(() -> {
+                    byte[] body = new byte[Chunker.CHUNK_SIZE];
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests) {
+                        bytes[slot] += fetchOne(port, f.contentHash, i % f.numChunks, body);
+                    }
+                    return null;
+                });
+            }
+            long total = 0;
+            for (int c = 0; c < clients; c++) {
+                done[c].get();
+                total += bytes[c];
+            }
+            return total;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static int fetchOne(int port, String hash, int chunkIndex, byte[] body) throws IOException {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            ChunkRequest req = new ChunkRequest();
+            req.contentHash = hash;
+            req.chunkIndex = chunkIndex;
+            OutputStream out = s.getOutputStream();
+            out.write(JsonUtil.MAPPER.writeValueAsBytes(req));
+            out.write('\n');
+            out.flush();
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            ChunkResponseHeader hdr = JsonUtil.MAPPER.readValue(readLine(in), ChunkResponseHeader.class);
+            int read = 0;
+            while (read < hdr.lengthBytes) {
+                int n = in.read(body, read, hdr.lengthBytes - read);
+                if (n < 0) throw new IOException("Short chunk body");
+                read += n;
+            }
+            return read;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') bos.write(b);
+        return bos.toString(StandardCharsets.UTF_8);
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long a : mx.getThreadAllocatedBytes(mx.getAllThreadIds())) {
+            if (a > 0) total += a;
+        }
+        return total;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    /** The chunk path as it was before transferTo, one thread per connection. */
+    private static final class OldServer implements AutoCloseable {
+        private final ServerSocket socket = new ServerSocket(0);
+        private final ExecutorService pool = Executors.newCachedThreadPool();
+        private final SharedFile file;
+
+        OldServer(SharedFile file) throws IOException {
+            this.file = file;
+            pool.submit(this::acceptLoop);
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        private void acceptLoop() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket s = socket.accept();
+                    pool.submit(() -> handle(s));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(Socket sock) {
+            try (sock;
+                 InputStream in = new BufferedInputStream(sock.getInputStream());
+                 OutputStream out = new BufferedOutputStream(sock.getOutputStream())) {
+                ChunkRequest req = JsonUtil.MAPPER.readValue(readLine(in), ChunkRequest.class);
+                long offset = Chunker.chunkOffset(req.chunkIndex);
+                byte[] chunk = new byte[(int) Math.min(Chunker.CHUNK_SIZE, file.sizeBytes - offset)];
+                try (RandomAccessFile raf = new RandomAccessFile(file.localPath.toFile(), "r")) {
+                    raf.seek(offset);
+                    raf.readFully(chunk);
+                }
+                ChunkResponseHeader hdr = new ChunkResponseHeader();
+                hdr.contentHash = file.contentHash;
+                hdr.chunkIndex = req.chunkIndex;
+                hdr.lengthBytes = chunk.length;
+                hdr.fileSizeBytes = file.sizeBytes;
+                hdr.numChunks = file.numChunks;
+                out.write(JsonUtil.MAPPER.writeValueAsBytes(hdr));
+                out.write('\n');
+                out.flush();
+                out.write(chunk);
+                out.flush();
+            } catch (IOException e) {
+                // The client went away; nothing to measure.
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            pool.shutdownNow();
+        }
+    }
+}
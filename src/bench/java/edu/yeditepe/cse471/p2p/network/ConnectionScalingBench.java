@@ -0,0 +1,145 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.model.SharedFile;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkRequest;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkResponseHeader;
+import edu.yeditepe.cse471.p2p.streaming.Chunker;
+import edu.yeditepe.cse471.p2p.util.JsonUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * How the blocking and NIO server engines scale with open connections: for
+ * each connection count, opens that many connections, reports the threads
+ * the server runs while they are open, then sends one CHUNK_REQUEST on every
+ * connection at once and reads the responses back, for chunks/s.
+ *
+ * <p>Arguments: {@code [connectionCounts=100,500,1000] [rounds=3]}. Each
+ * connection holds two file descriptors in this process, so the open-file
+ * limit must be above twice the largest count.
+ */
+final class ConnectionScalingBench {
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "100,500,1000").split(",");
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path file = Files.createTempFile("scaling-bench", ".mp4");
+        file.toFile().deleteOnExit();
+        byte[] data = new byte[16 * Chunker.CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+        Files.write(file, data);
+        SharedFile f = new SharedFile("ab".repeat(32), data.length, file, "bench.mp4");
+        VersionedCatalog catalog = new VersionedCatalog();
+        catalog.put(f);
+
+        for (String engine : new String[]{"blocking", "nio"}) {
+            for (String c : counts) {
+                int port = freePort();
+                System.setProperty("p2p.controlPort", String.valueOf(port));
+                System.setProperty("p2p.serverEngine", engine);
+                ControlServer server = new ControlServer(catalog);
+                server.start();
+                try {
+                    run(engine, port, f, Integer.parseInt(c.trim()), rounds);
+                } finally {
+                    server.stop();
+                    awaitServerThreadsGone();
+                }
+            }
+        }
+    }
+
+    private static void run(String engine, int port, SharedFile f, int connections, int rounds) throws Exception {
+        List<Socket> sockets = new ArrayList<>(connections);
+        List<InputStream> ins = new ArrayList<>(connections);
+        byte[] body = new byte[Chunker.CHUNK_SIZE];
+        try {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+                sockets.add(s);
+                ins.add(new BufferedInputStream(s.getInputStream()));
+            }
+            double connectMs = (System.nanoTime() - t0) / 1e6;
+            // One request round trip so every connection is accepted and registered before counting threads.
+            round(sockets, ins, f, body);
+            int threads = serverThreads();
+
+            double best = Double.MAX_VALUE;
+            for (int r = 0; r < rounds; r++) {
+                long start = System.nanoTime();
+                round(sockets, ins, f, body);
+                best = Math.min(best, (System.nanoTime() - start) / 1e9);
+            }
+            System.out.printf("%-8s %5d connections: %5d server threads, connect %7.1f ms, %8.0f chunks/s%n",
+                    engine, connections, threads, connectMs, connections / best);
+        } finally {
+            for (Socket s : sockets) {
+                try { s.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /** Sends one request on every connection, then reads every response. */
+    private static void round(List<Socket> sockets, List<InputStream> ins, SharedFile f, byte[] body) throws IOException {
+        for (int i = 0; i < sockets.size(); i++) {
+            ChunkRequest req = new ChunkRequest();
+            req.contentHash = f.contentHash;
+            req.chunkIndex = i % f.numChunks;
+            OutputStream out = sockets.get(i).getOutputStream();
+            out.write(JsonUtil.MAPPER.writeValueAsBytes(req));
+            out.write('\n');
+            out.flush();
+        }
+        for (InputStream in : ins) {
+            ChunkResponseHeader hdr = JsonUtil.MAPPER.readValue(readLine(in), ChunkResponseHeader.class);
+            int read = 0;
+            while (read < hdr.lengthBytes) {
+                int n = in.read(body, read, hdr.lengthBytes - read);
+                if (n < 0) throw new IOException("Short chunk body");
+                read += n;
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') bos.write(b);
+        if (b == -1) throw new IOException("Connection closed");
+        return bos.toString(StandardCharsets.UTF_8);
+    }
+
+    /** Live threads of either server engine; ControlServer names them "control-...". */
+    private static int serverThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("control")) n++;
+        }
+        return n;
+    }
+
+    private static void awaitServerThreadsGone() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (serverThreads() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkRequest;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkResponseHeader;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ControlRequest;
+import edu.yeditepe.cse471.p2p.util.JsonUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encode/decode cost of the chunk request and response headers as JSON
+ * lines (read a byte at a time, requests parsed twice, as the server used
+ * to) against {@link BinaryFrames} read from a stream.
+ *
+ * <p>Arguments: {@code [iterations=1000000]}; each case is warmed up with
+ * the same count first and reported in ns per header.
+ */
+final class FrameCodecBench {
+    private interface Op {
+        Object run() throws IOException;
+    }
+
+    // Keeps results alive so the JIT cannot drop the work.
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        ChunkRequest req = new ChunkRequest();
+        req.contentHash = "ab".repeat(32);
+        req.chunkIndex = 1234;
+        ChunkResponseHeader hdr = new ChunkResponseHeader();
+        hdr.contentHash = req.contentHash;
+        hdr.chunkIndex = 1234;
+        hdr.lengthBytes = 262144;
+        hdr.fileSizeBytes = 1L << 31;
+        hdr.numChunks = 8192;
+
+        byte[] reqLine = jsonLine(req);
+        byte[] hdrLine = jsonLine(hdr);
+        byte[] reqFrame = bytes(BinaryFrames.encodeChunkRequest(req));
+        byte[] hdrFrame = bytes(BinaryFrames.encodeChunkResponse(hdr));
+        System.out.printf("request: %d B as JSON, %d B as frame; response header: %d B as JSON, %d B as frame%n",
+                reqLine.length, reqFrame.length, hdrLine.length, hdrFrame.length);
+
+        measure("json encode request", iterations, () -> jsonLine(req));
+        measure("json decode request", iterations, () -> {
+            String line = readLine(new ByteArrayInputStream(reqLine));
+            JsonUtil.MAPPER.readValue(line, ControlRequest.class);
+            return JsonUtil.MAPPER.readValue(line, ChunkRequest.class);
+        });
+        measure("frame encode request", iterations, () -> BinaryFrames.encodeChunkRequest(req));
+        measure("frame decode request", iterations,
+                () -> BinaryFrames.read(new DataInputStream(new ByteArrayInputStream(reqFrame))));
+
+        measure("json encode header", iterations, () -> jsonLine(hdr));
+        measure("json decode header", iterations,
+                () -> JsonUtil.MAPPER.readValue(readLine(new ByteArrayInputStream(hdrLine)), ChunkResponseHeader.class));
+        measure("frame encode header", iterations, () -> BinaryFrames.encodeChunkResponse(hdr));
+        measure("frame decode header", iterations,
+                () -> BinaryFrames.read(new DataInputStream(new ByteArrayInputStream(hdrFrame))));
+    }
+
+    private static void measure(String label, int iterations, Op op) throws IOException {
+        for (int i = 0; i < iterations; i++) sink += op.run().hashCode();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink += op.run().hashCode();
+        System.out.printf("%-22s %8.1f ns%n", label, (System.nanoTime() - t0) / (double) iterations);
+    }
+
+    private static byte[] jsonLine(Object obj) throws IOException {
+        byte[] json = JsonUtil.MAPPER.writeValueAsBytes(obj);
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        return line;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') bos.write(b);
+        return bos.toString(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+        buf.get(b);
+        return b;
+    }
+}
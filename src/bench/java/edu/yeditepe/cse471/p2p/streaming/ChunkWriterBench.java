@@ -0,0 +1,88 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffer file write throughput with many chunks completing at once: a
+ * RandomAccessFile opened per chunk (the old StreamSession path) against
+ * {@link ChunkWriter} in channel and mmap mode. Chunks are written in
+ * shuffled order, as they arrive from several peers; only the writes are
+ * timed, not the final force.
+ *
+ * <p>Arguments: {@code [threads=16] [chunks=2000] [dir=temp dir]}. Point
+ * {@code dir} at the disk to measure; the default temp dir may be tmpfs.
+ */
+final class ChunkWriterBench {
+    private interface ChunkSink {
+        void write(int chunkIndex, byte[] data) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int chunks = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Path dir = args.length > 2 ? Path.of(args[2]) : Path.of(System.getProperty("java.io.tmpdir"));
+
+        byte[] data = new byte[Chunker.CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+        List<Integer> order = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) order.add(i);
+        Collections.shuffle(order, new Random(2));
+        long size = (long) chunks * Chunker.CHUNK_SIZE;
+
+        for (int rep = 0; rep < 3; rep++) {
+            Path file = Files.createTempFile(dir, "writer-bench", ".buffer");
+            try {
+                try (RandomAccessFile sizer = new RandomAccessFile(file.toFile(), "rw")) {
+                    sizer.setLength(size);
+                }
+                run("RandomAccessFile per chunk", threads, order, data, (i, d) -> {
+                    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                        raf.seek(Chunker.chunkOffset(i));
+                        raf.write(d);
+                    }
+                });
+                for (boolean mmap : new boolean[]{false, true}) {
+                    Files.delete(file);
+                    try (ChunkWriter w = new ChunkWriter(file, size, mmap)) {
+                        run(mmap ? "ChunkWriter mmap" : "ChunkWriter channel", threads, order, data, w::write);
+                        w.force();
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void run(String label, int threads, List<Integer> order, byte[] data, ChunkSink sink) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        try {
+            long t0 = System.nanoTime();
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                done.add(pool.submit(() -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < order.size()) sink.write(order.get(i), data);
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) f.get();
+            double secs = (System.nanoTime() - t0) / 1e9;
+            System.out.printf("%-28s %7.2f GB/s%n", label, (double) order.size() * data.length / secs / 1e9);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
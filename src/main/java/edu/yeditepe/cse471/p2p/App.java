@@ -5,9 +5,11 @@ import edu.yeditepe.cse471.p2p.model.Peer;
 import edu.yeditepe.cse471.p2p.model.SharedFile;
 import edu.yeditepe.cse471.p2p.network.*;
 import edu.yeditepe.cse471.p2p.streaming.StreamSession;
+import edu.yeditepe.cse471.p2p.streaming.TransferManager;
 import java.awt.Desktop;
 import edu.yeditepe.cse471.p2p.ui.ActiveStreamRow;
 import edu.yeditepe.cse471.p2p.util.AppConfig;
+import edu.yeditepe.cse471.p2p.util.Threads;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
@@ -21,12 +23,15 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class App extends Application {
@@ -35,16 +40,23 @@ public class App extends Application {
     private final PeerRegistry registry = new PeerRegistry();
     private final LocalCatalogBuilder catalogBuilder = new LocalCatalogBuilder();
     private final ControlClient controlClient = new ControlClient();
+    private final TransferManager transfers = new TransferManager(controlClient);
+    private StreamSession foregroundSession;
 
-    private final Map<String, SharedFile> localFilesByHash = new ConcurrentHashMap<>();
+    // What this peer advertises: local files plus streams in progress. Versioned for delta sync.
+    private final VersionedCatalog localCatalog = new VersionedCatalog();
+    // Peers with a catalog fetch running, so repeated announces do not start another.
+    private final Set<String> catalogSyncs = ConcurrentHashMap.newKeySet();
 
     private ControlServer controlServer;
     private DiscoveryService discoveryService;
+    private LocalStreamServer streamServer;
 
     private Path rootFolder;
     private Path bufferFolder;
 
     private boolean connected = false;
+    private boolean connecting = false;
 
     // UI state
     private final ObservableList<AvailableVideo> availableVideos = FXCollections.observableArrayList();
@@ -74,6 +86,16 @@ public class App extends Application {
         stage.setScene(scene);
         stage.show();
 
+        // Streams retire sources on their own; here the peer's connections and search results go.
+        registry.addListener(new PeerRegistry.Listener() {
+            @Override
+            public void onPeerRemoved(Peer peer) {
+                log("Peer left: " + peer);
+                controlClient.closePeer(peer);
+                Platform.runLater(App.this::runSearch);
+            }
+        });
+
         log("Ready. Set folders, then Stream -> Connect.");
     }
 
@@ -190,7 +212,10 @@ public class App extends Application {
         TableColumn<ActiveStreamRow, String> colStatus = new TableColumn<>("Status");
         colStatus.setCellValueFactory(c -> c.getValue().statusProperty());
 
-        activeTable.getColumns().addAll(colVideo, colPeer, colChunk, colProg, colStatus);
+        TableColumn<ActiveStreamRow, Number> colRate = new TableColumn<>("Rate KB/s");
+        colRate.setCellValueFactory(c -> c.getValue().rateKBpsProperty());
+
+        activeTable.getColumns().addAll(colVideo, colPeer, colChunk, colProg, colStatus, colRate);
 
        
         StackPane videoPane = new StackPane(new Label("Video playback via VLC Media Player"));
@@ -231,30 +256,51 @@ public class App extends Application {
     }
 
     private void connect() {
-        if (connected) return;
+        if (connected || connecting) return;
+        if (rootFolder == null) {
+            log("Root folder not set; local catalog is empty.");
+            finishConnect(List.of());
+            return;
+        }
 
-        try {
-           
-            if (rootFolder != null) {
-                var catalog = catalogBuilder.build(rootFolder);
-                localFilesByHash.clear();
-                for (SharedFile f : catalog) {
-                    localFilesByHash.put(f.contentHash, f);
-                }
-                registry.setLocalCatalog(catalog);
-                log("Local catalog built. Files: " + catalog.size());
-            } else {
-                registry.setLocalCatalog(List.of());
-                log("Root folder not set; local catalog is empty.");
+        // Hashing a large library takes a while; keep the UI responsive and show progress.
+        connecting = true;
+        statusLabel.setText("Status: HASHING");
+        Path root = rootFolder;
+        Threads.start("catalog-build", () -> {
+            try {
+                long t0 = System.nanoTime();
+                var catalog = catalogBuilder.build(root, (files, totalFiles, bytes, totalBytes) ->
+                        log(String.format("Hashing local files: %d/%d files, %.1f/%.1f GB",
+                                files, totalFiles, bytes / 1e9, totalBytes / 1e9)));
+                log(String.format("Local catalog built. Files: %d (%.1f s)", catalog.size(),
+                        (System.nanoTime() - t0) / 1e9));
+                Platform.runLater(() -> {
+                    connecting = false;
+                    finishConnect(catalog);
+                });
+            } catch (IOException e) {
+                log("Catalog build failed: " + e.getMessage());
+                Platform.runLater(() -> {
+                    connecting = false;
+                    statusLabel.setText("Status: DISCONNECTED");
+                });
             }
+        });
+    }
+
+    private void finishConnect(Collection<SharedFile> catalog) {
+        try {
+            localCatalog.replaceComplete(catalog);
+            registry.setLocalCatalog(catalog);
 
-            controlServer = new ControlServer(
-                    () -> localFilesByHash.values(),
-                    (hash) -> localFilesByHash.get(hash)
-            );
+            controlServer = new ControlServer(localCatalog);
             controlServer.start();
 
-            discoveryService = new DiscoveryService(registry, this::onNewPeerDiscovered);
+            streamServer = new LocalStreamServer();
+            streamServer.start();
+
+            discoveryService = new DiscoveryService(registry, localCatalog, this::syncCatalog);
             discoveryService.start();
 
             connected = true;
@@ -276,6 +322,9 @@ public class App extends Application {
         try {
             if (discoveryService != null) discoveryService.stop();
             if (controlServer != null) controlServer.stop();
+            if (streamServer != null) streamServer.stop();
+            transfers.stopAll();
+            controlClient.close();
         } catch (Exception ignored) {}
 
         connected = false;
@@ -285,22 +334,38 @@ public class App extends Application {
         log("Disconnected.");
     }
 
-    private void onNewPeerDiscovered(Peer peer) {
-        
-        new Thread(() -> {
+    /** Fetches a new peer's catalog, or only what changed since the version we hold. */
+    private void syncCatalog(Peer peer) {
+        if (!catalogSyncs.add(peer.peerId)) return;
+        Threads.start("catalog-fetch-" + peer.peerId, () -> {
             try {
-                log("Discovered peer: " + peer);
-                var files = controlClient.requestCatalog(peer, 2500);
-                registry.setPeerCatalog(peer.peerId, files);
-                log("Catalog fetched from " + peer.peerName + " (" + files.size() + " files)");
+                PeerRegistry.CatalogVersion known = registry.catalogVersion(peer.peerId);
+                if (known == null) log("Discovered peer: " + peer);
+                try {
+                    var delta = controlClient.requestCatalogSince(peer,
+                            known == null ? null : known.epoch(), known == null ? 0 : known.version(), 2500);
+                    if (!registry.applyCatalogDelta(peer.peerId, delta)) return;
+                    if (delta.full) {
+                        log("Catalog fetched from " + peer.peerName + " (" + delta.added.size() + " files)");
+                    } else {
+                        log("Catalog update from " + peer.peerName + ": " + delta.added.size() + " added, "
+                                + delta.removed.size() + " removed");
+                    }
+                } catch (IOException e) {
+                    // Peers without catalog versions only answer the full request.
+                    var files = controlClient.requestCatalog(peer, 2500);
+                    if (!registry.setPeerCatalog(peer.peerId, files)) return;
+                    log("Catalog fetched from " + peer.peerName + " (" + files.size() + " files)");
+                }
 
-                
                 Platform.runLater(this::runSearch);
 
             } catch (IOException e) {
                 log("Catalog fetch failed for " + peer + ": " + e.getMessage());
+            } finally {
+                catalogSyncs.remove(peer.peerId);
             }
-        }, "catalog-fetch-" + peer.peerId).start();
+        });
     }
 
     private void runSearch() {
@@ -340,12 +405,19 @@ public class App extends Application {
         }
         activeStreams.setAll(rowByPeer.values());
 
+        // Set once the session is registered with the local HTTP server.
+        AtomicReference<URI> playUri = new AtomicReference<>();
+        // The session itself, for the listener: its chunk hashes go into the catalog once complete.
+        AtomicReference<StreamSession> self = new AtomicReference<>();
+        AtomicBoolean playingOverHttp = new AtomicBoolean(false);
+
         StreamSession session = new StreamSession(
                 v.contentHash,
                 v.displayName,
                 sources,
                 v.sizeBytes,
                 v.numChunks,
+                v.chunkListHash,
                 outFile,
                 8,
                 new StreamSession.Listener() {
@@ -357,12 +429,15 @@ public class App extends Application {
                     @Override
                     public void onPeerUpdate(Peer peer, int chunkIndex, double progress01, String status) {
                         Platform.runLater(() -> {
-                            ActiveStreamRow r = rowByPeer.get(peer.peerId);
-                            if (r != null) {
-                                r.setChunk(chunkIndex);
-                                r.setProgress01(progress01);
-                                r.setStatus(status);
-                            }
+                            // Sources can join after the stream started.
+                            ActiveStreamRow r = rowByPeer.computeIfAbsent(peer.peerId, id -> {
+                                ActiveStreamRow row = new ActiveStreamRow(v.displayName, peer.toString());
+                                activeStreams.add(row);
+                                return row;
+                            });
+                            r.setChunk(chunkIndex);
+                            r.setProgress01(progress01);
+                            r.setStatus(status);
                         });
                     }
 
@@ -371,9 +446,28 @@ public class App extends Application {
                         Platform.runLater(() -> globalBufferBar.setProgress(progress01));
                     }
 
+                    @Override
+                    public void onPeerRate(Peer peer, double bytesPerSec, double latencyMs, int inFlight) {
+                        Platform.runLater(() -> {
+                            ActiveStreamRow r = rowByPeer.get(peer.peerId);
+                            if (r != null) r.setRateKBps(Math.round(bytesPerSec / 1024.0));
+                        });
+                    }
+
                     @Override
                     public void onReadyToPlay(Path localFile) {
-                        log("Buffer threshold met. Starting playback: " + localFile);
+                        URI uri = playUri.get();
+                        if (uri == null) {
+                            log("Buffer threshold met: " + localFile);
+                            return;
+                        }
+                        log("Buffer threshold met. Starting playback: " + uri);
+                        try {
+                            Desktop.getDesktop().browse(uri);
+                            playingOverHttp.set(true);
+                        } catch (Exception e) {
+                            log("Could not open player: " + e.getMessage());
+                        }
                     }
 
                     @Override
@@ -384,6 +478,7 @@ public class App extends Application {
        
                  if (!fileName.endsWith(".buffer")) {
                log("Not a buffer file, skipping open: " + localFile);
+                            if (controlServer != null) controlServer.unregisterPartial(v.contentHash);
                 return;
                  }
 
@@ -393,27 +488,48 @@ public class App extends Application {
                try {
               Files.move(localFile, finalMp4, StandardCopyOption.REPLACE_EXISTING);
               log("Final video assembled: " + finalMp4);
+                            if (streamServer != null) streamServer.moved(v.contentHash, finalMp4);
+                            SharedFile done = new SharedFile(v.contentHash, v.sizeBytes, finalMp4, v.displayName);
+                            StreamSession s = self.get();
+                            if (s != null && s.file().hasChunkHashes()) done.attachChunkHashes(s.file().chunkHashes);
+                            localCatalog.put(done);
 
         
-              Desktop.getDesktop().open(finalMp4.toFile());
+                            if (!playingOverHttp.get()) Desktop.getDesktop().open(finalMp4.toFile());
 
               } catch (Exception e) {
            log("Failed to finalize video: " + e.getMessage());
+                        } finally {
+                            // After the complete entry is published, so peers never see the file drop out of the catalog.
+                            if (controlServer != null) controlServer.unregisterPartial(v.contentHash);
             }
 
 
                         
         }
-                }
+                },
+                transfers
         );
 
-        new Thread(() -> {
+        // The newest stream is the one being watched; earlier ones keep downloading in the background.
+        if (foregroundSession != null) foregroundSession.setPriority(TransferManager.Priority.BACKGROUND);
+        foregroundSession = session;
+
+        self.set(session);
+        if (streamServer != null) playUri.set(session.serveHttp(streamServer));
+        // Sources still downloading themselves only get asked for chunks they advertise;
+        // in turn, other peers can fetch what this session already has.
+        session.setPartialSources(v.partialSources);
+        session.followRegistry(registry);
+        if (controlServer != null) session.servePartial(controlServer);
+
+        Threads.start("stream-" + Instant.now().toEpochMilli(), () -> {
             try {
                 session.start();
             } catch (Exception e) {
                 log("Stream failed: " + e.getMessage());
             }
-        }, "stream-" + Instant.now().toEpochMilli()).start();
+        });
     }
 
     private void log(String msg) {
@@ -1,14 +1,19 @@
 package edu.yeditepe.cse471.p2p.model;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class AvailableVideo {
     public String contentHash;
     public String displayName;
     public long sizeBytes;
     public int numChunks;
+    public String chunkListHash;
     public final List<Peer> sources = new ArrayList<>();
+    // Peer ids among the sources that are still downloading it themselves.
+    public final Set<String> partialSources = new HashSet<>();
 
     public String uiLabel() {
         String shortHash = contentHash == null ? "" : contentHash.substring(0, Math.min(10, contentHash.length()));
@@ -1,6 +1,7 @@
 package edu.yeditepe.cse471.p2p.model;
 
 import edu.yeditepe.cse471.p2p.streaming.Chunker;
+import edu.yeditepe.cse471.p2p.util.HashUtil;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -12,6 +13,11 @@ public class SharedFile {
     public long sizeBytes;
     public int numChunks;
     public List<String> names = new ArrayList<>();
+    public String chunkListHash;     // SHA-256 over chunkHashes; null from peers that do not publish them
+    public boolean partial;          // still downloading at the peer; ask it HAVE_REQUEST for its chunks
+
+    // SHA-256 per chunk, kept out of catalogs; peers fetch it with CHUNK_HASHES_REQUEST.
+    public transient List<String> chunkHashes;
 
     // Local-only fields
     public transient Path localPath;
@@ -29,4 +35,14 @@ public class SharedFile {
     public String primaryName() {
         return names.isEmpty() ? contentHash.substring(0, 12) : names.get(0);
     }
+
+    public boolean hasChunkHashes() {
+        return chunkHashes != null && chunkHashes.size() == numChunks;
+    }
+
+    /** Sets the chunk hash list and the hash over it that catalogs publish. */
+    public void attachChunkHashes(List<String> hashes) {
+        this.chunkHashes = hashes;
+        this.chunkListHash = hashes == null ? null : HashUtil.chunkListHash(hashes);
+    }
 }
@@ -0,0 +1,163 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkCancel;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkRangeRequest;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkRequest;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkResponseHeader;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ErrorResponse;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary encoding of the chunk hot path, used on a connection
+ * once both sides agreed on it with a PROTOCOL_HELLO exchange.
+ *
+ * <pre>
+ * frame          := u32 length | u8 type | payload (length - 1 bytes)
+ * CHUNK_REQUEST  := str8 contentHash | i32 chunkIndex
+ * CHUNK_RANGE    := str8 contentHash | i32 startIndex | i32 count
+ * CHUNK_CANCEL   := str8 contentHash | i32 chunkIndex    (no response)
+ * CHUNK_RESPONSE := str8 contentHash | i32 chunkIndex | i32 lengthBytes | i64 fileSizeBytes | i32 numChunks
+ *                   (followed by lengthBytes of raw chunk data, outside the frame)
+ * ERROR          := str16 message
+ * </pre>
+ * Integers are big-endian; strN is an N-bit unsigned length followed by UTF-8 bytes.
+ */
+public final class BinaryFrames {
+    private BinaryFrames() {}
+
+    public static final int VERSION = 1;
+
+    public static final byte CHUNK_REQUEST = 0x01;
+    public static final byte CHUNK_RESPONSE = 0x02;
+    public static final byte CHUNK_RANGE = 0x03;
+    public static final byte CHUNK_CANCEL = 0x04;
+    public static final byte ERROR = 0x7F;
+
+    public static final int MAX_FRAME = 64 * 1024;
+
+    public static ByteBuffer encodeChunkRequest(ChunkRequest req) {
+        byte[] hash = utf8(req.contentHash, 0xFF);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 1 + hash.length + 4);
+        buf.putInt(buf.capacity() - 4).put(CHUNK_REQUEST);
+        buf.put((byte) hash.length).put(hash);
+        buf.putInt(req.chunkIndex);
+        return buf.flip();
+    }
+
+    public static ByteBuffer encodeChunkRange(ChunkRangeRequest req) {
+        byte[] hash = utf8(req.contentHash, 0xFF);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 1 + hash.length + 4 + 4);
+        buf.putInt(buf.capacity() - 4).put(CHUNK_RANGE);
+        buf.put((byte) hash.length).put(hash);
+        buf.putInt(req.startIndex).putInt(req.count);
+        return buf.flip();
+    }
+
+    public static ByteBuffer encodeChunkCancel(ChunkCancel req) {
+        byte[] hash = utf8(req.contentHash, 0xFF);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 1 + hash.length + 4);
+        buf.putInt(buf.capacity() - 4).put(CHUNK_CANCEL);
+        buf.put((byte) hash.length).put(hash);
+        buf.putInt(req.chunkIndex);
+        return buf.flip();
+    }
+
+    public static ByteBuffer encodeChunkResponse(ChunkResponseHeader hdr) {
+        byte[] hash = utf8(hdr.contentHash, 0xFF);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 1 + hash.length + 4 + 4 + 8 + 4);
+        buf.putInt(buf.capacity() - 4).put(CHUNK_RESPONSE);
+        buf.put((byte) hash.length).put(hash);
+        buf.putInt(hdr.chunkIndex).putInt(hdr.lengthBytes).putLong(hdr.fileSizeBytes).putInt(hdr.numChunks);
+        return buf.flip();
+    }
+
+    public static ByteBuffer encodeError(String message) {
+        byte[] msg = utf8(message == null ? "" : message, 0xFFFF);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 2 + msg.length);
+        buf.putInt(buf.capacity() - 4).put(ERROR);
+        buf.putShort((short) msg.length).put(msg);
+        return buf.flip();
+    }
+
+    /**
+     * Decodes one frame body (type byte onwards, length prefix already consumed)
+     * into a {@link ChunkRequest}, {@link ChunkRangeRequest}, {@link ChunkCancel},
+     * {@link ChunkResponseHeader} or {@link ErrorResponse}.
+     */
+    public static Object decode(ByteBuffer frame) throws IOException {
+        try {
+            byte type = frame.get();
+            switch (type) {
+                case CHUNK_REQUEST -> {
+                    ChunkRequest req = new ChunkRequest();
+                    req.contentHash = str(frame, frame.get() & 0xFF);
+                    req.chunkIndex = frame.getInt();
+                    return req;
+                }
+                case CHUNK_RANGE -> {
+                    ChunkRangeRequest req = new ChunkRangeRequest();
+                    req.contentHash = str(frame, frame.get() & 0xFF);
+                    req.startIndex = frame.getInt();
+                    req.count = frame.getInt();
+                    return req;
+                }
+                case CHUNK_CANCEL -> {
+                    ChunkCancel req = new ChunkCancel();
+                    req.contentHash = str(frame, frame.get() & 0xFF);
+                    req.chunkIndex = frame.getInt();
+                    return req;
+                }
+                case CHUNK_RESPONSE -> {
+                    ChunkResponseHeader hdr = new ChunkResponseHeader();
+                    hdr.contentHash = str(frame, frame.get() & 0xFF);
+                    hdr.chunkIndex = frame.getInt();
+                    hdr.lengthBytes = frame.getInt();
+                    hdr.fileSizeBytes = frame.getLong();
+                    hdr.numChunks = frame.getInt();
+                    return hdr;
+                }
+                case ERROR -> {
+                    ErrorResponse er = new ErrorResponse();
+                    er.message = str(frame, frame.getShort() & 0xFFFF);
+                    return er;
+                }
+                default -> throw new IOException("Unknown frame type: " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame");
+        }
+    }
+
+    /** Reads and decodes one frame from a blocking stream; returns null on a clean EOF. */
+    public static Object read(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) return null;
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedShort());
+        checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    static void checkLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME) throw new IOException("Bad frame length: " + length);
+    }
+
+    private static String str(ByteBuffer buf, int len) {
+        if (len > buf.remaining()) throw new BufferUnderflowException();
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static byte[] utf8(String s, int maxLen) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > maxLen) throw new IllegalArgumentException("Field too long for frame: " + b.length);
+        return b;
+    }
+}
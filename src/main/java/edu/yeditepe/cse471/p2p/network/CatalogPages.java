@@ -0,0 +1,100 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.model.SharedFile;
+import edu.yeditepe.cse471.p2p.util.JsonUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.yeditepe.cse471.p2p.network.ControlMessages.*;
+
+/**
+ * Wire encoding of catalog entries as {@link CatalogPage} frames: a header
+ * line followed by {@code lengthBytes} of JSON array, each page holding whole
+ * entries up to about {@code pageBytes}. The full catalog is encoded once per
+ * version and the frames reused for every peer that asks until it changes.
+ */
+class CatalogPages {
+    /** The catalog at {@code version} as page frames; the arrays are shared and must not be changed. */
+    record Snapshot(long version, List<byte[]> pages, byte[] legacyLine) {}
+
+    private final VersionedCatalog catalog;
+    private final int pageBytes;
+    private Snapshot cached;
+
+    CatalogPages(VersionedCatalog catalog, int pageBytes) {
+        this.catalog = catalog;
+        this.pageBytes = Math.max(1024, pageBytes);
+    }
+
+    /** The full catalog, re-encoded only if it changed since the last call. */
+    synchronized Snapshot full() throws IOException {
+        Snapshot s = cached;
+        if (s == null || s.version != catalog.version()) {
+            VersionedCatalog.Delta all = catalog.full();
+            s = new Snapshot(all.toVersion(), encode(all.added()), null);
+            cached = s;
+        }
+        return s;
+    }
+
+    /** The single-line CATALOG_RESPONSE older clients expect, cached alongside the pages. */
+    synchronized byte[] legacyLine() throws IOException {
+        Snapshot s = full();
+        if (s.legacyLine != null) return s.legacyLine;
+        VersionedCatalog.Delta all = catalog.full();
+        CatalogResponse resp = new CatalogResponse();
+        resp.files.addAll(all.added());
+        resp.catalogEpoch = catalog.epoch();
+        resp.catalogVersion = all.toVersion();
+        byte[] line = line(resp);
+        if (all.toVersion() == s.version) cached = new Snapshot(s.version, s.pages, line);
+        return line;
+    }
+
+    /** Encodes entries that are not cached, e.g. the added part of a delta. */
+    List<byte[]> encode(List<SharedFile> files) throws IOException {
+        List<byte[]> pages = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int entries = 0;
+        for (SharedFile f : files) {
+            byte[] json = JsonUtil.MAPPER.writeValueAsBytes(f);
+            if (entries > 0 && body.size() + json.length + 2 > pageBytes) {
+                pages.add(page(body, entries));
+                body.reset();
+                entries = 0;
+            }
+            body.write(entries == 0 ? '[' : ',');
+            body.write(json);
+            entries++;
+        }
+        if (entries > 0) pages.add(page(body, entries));
+        return pages;
+    }
+
+    /** Reads the entries of one page body. */
+    static List<SharedFile> decode(byte[] body) throws IOException {
+        return List.of(JsonUtil.MAPPER.readValue(body, SharedFile[].class));
+    }
+
+    private static byte[] page(ByteArrayOutputStream body, int entries) throws IOException {
+        body.write(']');
+        CatalogPage hdr = new CatalogPage();
+        hdr.entries = entries;
+        hdr.lengthBytes = body.size();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 64);
+        frame.write(line(hdr));
+        body.writeTo(frame);
+        return frame.toByteArray();
+    }
+
+    private static byte[] line(Object obj) throws IOException {
+        byte[] json = JsonUtil.MAPPER.writeValueAsBytes(obj);
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        return line;
+    }
+}
@@ -2,6 +2,8 @@ package edu.yeditepe.cse471.p2p.network;
 
 import edu.yeditepe.cse471.p2p.model.Peer;
 import edu.yeditepe.cse471.p2p.model.SharedFile;
+import edu.yeditepe.cse471.p2p.util.AppConfig;
+import edu.yeditepe.cse471.p2p.util.HashUtil;
 import edu.yeditepe.cse471.p2p.util.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,16 +11,107 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 import static edu.yeditepe.cse471.p2p.network.ControlMessages.*;
 
-public class ControlClient {
+public class ControlClient implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(ControlClient.class);
 
+    private static final int MAX_RESPONSE_LINE = 1024 * 1024;
+    // Old peers send their whole catalog on one line; bounded only to survive a bad peer.
+    private static final int MAX_LEGACY_CATALOG_LINE = 64 * 1024 * 1024;
+
+    private static final String URGENT_SUFFIX = "#urgent";
+
+    // How long a peer that refused the PROTOCOL_HELLO is served one-shot before we offer it again.
+    private static final long LEGACY_RECHECK_MS = 60_000;
+
+    // Pooled chunk connections keyed by "host:port", and "host:port#urgent" for the urgent one.
+    private final Map<String, List<PeerConnection>> connections = new ConcurrentHashMap<>();
+    // Peers that serve one request per connection, by "host:port", until the recheck time.
+    private final Map<String, Long> legacyUntil = new ConcurrentHashMap<>();
+    private final int maxConnectionsPerPeer;
+    private final int pipelineDepth;
+    private final int idleTimeoutMs;
+    private final LongAdder discardedBytes = new LongAdder();
+
+    public ControlClient() {
+        this(AppConfig.connectionsPerPeer(), AppConfig.pipelineDepth(), AppConfig.connectionIdleMs());
+    }
+
+    public ControlClient(int maxConnectionsPerPeer, int pipelineDepth, int idleTimeoutMs) {
+        this.maxConnectionsPerPeer = Math.max(1, maxConnectionsPerPeer);
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+        this.idleTimeoutMs = Math.max(1000, idleTimeoutMs);
+    }
+
+    /** Whole catalog as one JSON line, for peers that predate {@link #requestCatalogSince}. */
     public List<SharedFile> requestCatalog(Peer peer, int timeoutMs) throws IOException {
-        CatalogRequest req = new CatalogRequest();
+        return exchange(peer, new CatalogRequest(), "CATALOG_RESPONSE", CatalogResponse.class, timeoutMs,
+                MAX_LEGACY_CATALOG_LINE, null).files;
+    }
+
+    /**
+     * Catalog changes since {@code sinceVersion} of {@code catalogEpoch}; with
+     * a null epoch, or one the peer no longer knows, the full catalog
+     * ({@code full} set). Peers that predate catalog versions answer ERROR.
+     * The entries arrive in length-prefixed pages, so catalog size is not
+     * bounded by the line limit.
+     */
+    public CatalogDelta requestCatalogSince(Peer peer, String catalogEpoch, long sinceVersion, int timeoutMs)
+            throws IOException {
+        CatalogSinceRequest req = new CatalogSinceRequest();
+        req.catalogEpoch = catalogEpoch;
+        req.sinceVersion = sinceVersion;
+        return exchange(peer, req, "CATALOG_DELTA", CatalogDelta.class, timeoutMs, MAX_RESPONSE_LINE,
+                (delta, in) -> {
+                    for (int i = 0; i < delta.pages; i++) delta.added.addAll(readCatalogPage(in));
+                });
+    }
+
+    private static List<SharedFile> readCatalogPage(InputStream in) throws IOException {
+        String line = readLine(in, MAX_RESPONSE_LINE);
+        if (line == null) throw new EOFException("Catalog ended early");
+        CatalogPage page = JsonUtil.MAPPER.readValue(line, CatalogPage.class);
+        if (!"CATALOG_PAGE".equals(page.type) || page.lengthBytes < 0) {
+            throw new IOException("Bad catalog page: " + line);
+        }
+        byte[] body = in.readNBytes(page.lengthBytes);
+        if (body.length < page.lengthBytes) throw new EOFException("Catalog page truncated");
+        return CatalogPages.decode(body);
+    }
+
+    /** Which chunks of {@code contentHash} a partial source has; see {@link HaveRequest}. */
+    public HaveResponse requestHave(Peer peer, String contentHash, int sinceVersion, int timeoutMs) throws IOException {
+        HaveRequest req = new HaveRequest();
+        req.contentHash = contentHash;
+        req.sinceVersion = sinceVersion;
+        return exchange(peer, req, "HAVE_RESPONSE", HaveResponse.class, timeoutMs, MAX_RESPONSE_LINE, null);
+    }
+
+    /** Reads whatever follows a response line, such as its pages. */
+    private interface ResponseBody<T> {
+        void read(T response, InputStream in) throws IOException;
+    }
+
+    /**
+     * One JSON request and its JSON reply over a short-lived connection;
+     * {@code body}, if given, reads what follows the reply line.
+     */
+    private static <T> T exchange(Peer peer, Object req, String responseType, Class<T> responseClass, int timeoutMs,
+                                  int maxLineBytes, ResponseBody<T> body) throws IOException {
         try (Socket sock = new Socket()) {
             sock.connect(new InetSocketAddress(peer.address, peer.controlPort), timeoutMs);
             sock.setSoTimeout(timeoutMs);
@@ -27,15 +120,16 @@ public class ControlClient {
             InputStream in = new BufferedInputStream(sock.getInputStream());
 
             writeJsonLine(out, req);
-            String line = readLine(in, 1024 * 1024);
+            String line = readLine(in, maxLineBytes);
             if (line == null) throw new IOException("No response");
 
             // Peek at response type.
             var node = JsonUtil.MAPPER.readTree(line);
             String type = node.has("type") ? node.get("type").asText() : "";
-            if ("CATALOG_RESPONSE".equals(type)) {
-                CatalogResponse resp = JsonUtil.MAPPER.treeToValue(node, CatalogResponse.class);
-                return resp.files;
+            if (responseType.equals(type)) {
+                T resp = JsonUtil.MAPPER.treeToValue(node, responseClass);
+                if (body != null) body.read(resp, in);
+                return resp;
             }
             if ("ERROR".equals(type)) {
                 ErrorResponse er = JsonUtil.MAPPER.treeToValue(node, ErrorResponse.class);
@@ -45,43 +139,280 @@ public class ControlClient {
         }
     }
 
+    /**
+     * Fetches the chunk hash list of a file and checks it against the
+     * {@code chunkListHash} from the catalog; throws if the peer has none or
+     * sends a list that does not match.
+     */
+    public List<String> requestChunkHashes(Peer peer, String contentHash, int numChunks, String chunkListHash,
+                                           int timeoutMs) throws IOException {
+        ChunkHashesRequest req = new ChunkHashesRequest();
+        req.contentHash = contentHash;
+        // 64 hex digits plus quotes and a comma per chunk.
+        int maxLine = 4096 + numChunks * 68;
+        List<String> hashes = exchange(peer, req, "CHUNK_HASHES_RESPONSE", ChunkHashesResponse.class, timeoutMs,
+                maxLine, null).chunkHashes;
+        if (hashes == null || hashes.size() != numChunks || !HashUtil.chunkListHash(hashes).equals(chunkListHash)) {
+            throw new IOException("Chunk hash list from " + peer + " does not match its catalog entry");
+        }
+        return List.copyOf(hashes);
+    }
+
     public ChunkPayload requestChunk(Peer peer, String contentHash, int chunkIndex, int timeoutMs) throws IOException {
+        return startChunk(peer, contentHash, chunkIndex, timeoutMs).await();
+    }
+
+    /**
+     * Sends a chunk request without waiting for it, so the caller can race
+     * several peers and {@link PendingChunk#cancel() cancel} the losers.
+     */
+    public PendingChunk startChunk(Peer peer, String contentHash, int chunkIndex, int timeoutMs) throws IOException {
+        return startChunk(peer, contentHash, chunkIndex, timeoutMs, false);
+    }
+
+    /**
+     * As {@link #startChunk(Peer, String, int, int)}; {@code urgent} requests
+     * go over a separate connection so they never queue behind bulk ranges
+     * pipelined to the same peer.
+     */
+    public PendingChunk startChunk(Peer peer, String contentHash, int chunkIndex, int timeoutMs, boolean urgent)
+            throws IOException {
         ChunkRequest req = new ChunkRequest();
         req.contentHash = contentHash;
         req.chunkIndex = chunkIndex;
 
-        try (Socket sock = new Socket()) {
-            sock.connect(new InetSocketAddress(peer.address, peer.controlPort), timeoutMs);
-            sock.setSoTimeout(timeoutMs);
+        PeerConnection conn = connectionFor(peer, timeoutMs, urgent);
+        if (conn == null) {
+            // Nothing to race on a one-shot connection: the request completes before we return.
+            long now = System.currentTimeMillis();
+            var done = CompletableFuture.completedFuture(requestChunkOnce(peer, req, timeoutMs));
+            return new PendingChunk(null, req, done, now, now + timeoutMs);
+        }
+        long sentAt = System.currentTimeMillis();
+        var future = conn.send(req, timeoutMs);
+        return new PendingChunk(conn, req, future, sentAt, sentAt + timeoutMs);
+    }
 
-            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
-            InputStream in = new BufferedInputStream(sock.getInputStream());
+    /** Total bytes received for requests that had already been cancelled. */
+    public long discardedBytes() {
+        return discardedBytes.sum();
+    }
 
-            writeJsonLine(out, req);
-            String line = readLine(in, 64 * 1024);
-            if (line == null) throw new IOException("No chunk header");
+    /**
+     * Fetches {@code count} consecutive chunks in one round trip if the peer
+     * supports range requests, otherwise as pipelined single requests on one
+     * connection. Returns the chunks that arrived, in index order; throws only
+     * if none did, so the caller retries just the missing ones.
+     */
+    public List<ChunkPayload> requestChunkRange(Peer peer, String contentHash, int startIndex, int count, int timeoutMs)
+            throws IOException {
+        List<ChunkPayload> received = new ArrayList<>(count);
+        IOException firstFailure = null;
+        for (PendingChunk chunk : startChunkRange(peer, contentHash, startIndex, count, timeoutMs)) {
+            try {
+                received.add(chunk.await());
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (firstFailure == null) firstFailure = e;
+            }
+        }
+        if (received.isEmpty() && firstFailure != null) throw firstFailure;
+        return received;
+    }
 
-            var node = JsonUtil.MAPPER.readTree(line);
-            String type = node.has("type") ? node.get("type").asText() : "";
-            if ("ERROR".equals(type)) {
-                ErrorResponse er = JsonUtil.MAPPER.treeToValue(node, ErrorResponse.class);
-                throw new IOException(er.message);
+    /**
+     * Sends the requests of {@link #requestChunkRange} without waiting; one
+     * pending chunk per index, in order, sharing one deadline. Each can be
+     * {@link PendingChunk#cancel() cancelled} on its own, e.g. when another
+     * peer delivered that chunk first.
+     */
+    public List<PendingChunk> startChunkRange(Peer peer, String contentHash, int startIndex, int count, int timeoutMs)
+            throws IOException {
+        long sentAt = System.currentTimeMillis();
+        long deadline = sentAt + timeoutMs;
+        List<ChunkRequest> reqs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ChunkRequest req = new ChunkRequest();
+            req.contentHash = contentHash;
+            req.chunkIndex = startIndex + i;
+            reqs.add(req);
+        }
+
+        PeerConnection conn = connectionFor(peer, timeoutMs, false);
+        List<CompletableFuture<ChunkPayload>> futures = new ArrayList<>(count);
+        if (conn == null) {
+            futures.addAll(requestRangeOnce(peer, reqs, deadline));
+        } else if (count > 1 && conn.maxRangeChunks() >= count) {
+            ChunkRangeRequest req = new ChunkRangeRequest();
+            req.contentHash = contentHash;
+            req.startIndex = startIndex;
+            req.count = count;
+            futures.addAll(conn.sendRange(req, timeoutMs));
+        } else {
+            for (ChunkRequest req : reqs) futures.add(conn.send(req, timeoutMs));
+        }
+
+        List<PendingChunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) chunks.add(new PendingChunk(conn, reqs.get(i), futures.get(i), sentAt, deadline));
+        return chunks;
+    }
+
+    /**
+     * A range from a legacy peer: one connection per chunk, in order. After
+     * the first failure the rest fail with it; throws if the first one fails.
+     */
+    private static List<CompletableFuture<ChunkPayload>> requestRangeOnce(Peer peer, List<ChunkRequest> reqs,
+                                                                          long deadline) throws IOException {
+        List<CompletableFuture<ChunkPayload>> futures = new ArrayList<>(reqs.size());
+        IOException failure = null;
+        for (ChunkRequest req : reqs) {
+            if (failure == null) {
+                try {
+                    int left = (int) (deadline - System.currentTimeMillis());
+                    if (left <= 0) throw new SocketTimeoutException("Chunk " + req.chunkIndex + " timed out");
+                    futures.add(CompletableFuture.completedFuture(requestChunkOnce(peer, req, left)));
+                    continue;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (futures.isEmpty()) throw e;
+                    failure = e;
+                }
+            }
+            futures.add(CompletableFuture.failedFuture(failure));
+        }
+        return futures;
+    }
+
+    /** One chunk over its own connection, the way peers from before connection pooling serve it. */
+    private static ChunkPayload requestChunkOnce(Peer peer, ChunkRequest req, int timeoutMs) throws IOException {
+        byte[][] data = new byte[1][];
+        ChunkResponseHeader hdr = exchange(peer, req, "CHUNK_RESPONSE", ChunkResponseHeader.class, timeoutMs,
+                MAX_RESPONSE_LINE, (h, in) -> {
+                    data[0] = in.readNBytes(h.lengthBytes);
+                    if (data[0].length != h.lengthBytes) {
+                        throw new IOException("Incomplete chunk: expected=" + h.lengthBytes + " got=" + data[0].length);
+                    }
+                });
+        return new ChunkPayload(hdr, data[0]);
+    }
+
+    /** Closes every pooled connection. The client can still be used afterwards. */
+    @Override
+    public void close() {
+        for (List<PeerConnection> conns : connections.values()) {
+            synchronized (conns) {
+                conns.forEach(PeerConnection::close);
+                conns.clear();
             }
-            if (!"CHUNK_RESPONSE".equals(type)) {
-                throw new IOException("Unexpected chunk response: " + type);
+        }
+        connections.clear();
+    }
+
+    /** Closes pooled connections to a peer that left, so requests still waiting on it fail now. */
+    public void closePeer(Peer peer) {
+        String key = peer.address.getHostAddress() + ":" + peer.controlPort;
+        legacyUntil.remove(key);
+        for (String k : List.of(key, key + URGENT_SUFFIX)) {
+            List<PeerConnection> conns = connections.remove(k);
+            if (conns == null) continue;
+            synchronized (conns) {
+                conns.forEach(PeerConnection::close);
+                conns.clear();
+            }
+        }
+    }
+
+    /**
+     * A pooled connection to {@code peer}, or null if it is a legacy peer that
+     * needs one-shot requests. Urgent requests share one connection of their own.
+     */
+    private PeerConnection connectionFor(Peer peer, int timeoutMs, boolean urgent) throws IOException {
+        String key = peer.address.getHostAddress() + ":" + peer.controlPort;
+        Long until = legacyUntil.get(key);
+        if (until != null) {
+            if (System.currentTimeMillis() < until) return null;
+            legacyUntil.remove(key, until);
+        }
+        int maxConnections = urgent ? 1 : maxConnectionsPerPeer;
+        List<PeerConnection> conns = connections.computeIfAbsent(urgent ? key + URGENT_SUFFIX : key,
+                k -> new ArrayList<>());
+        synchronized (conns) {
+            conns.removeIf(PeerConnection::isClosed);
+
+            PeerConnection best = null;
+            for (PeerConnection c : conns) {
+                if (best == null || c.freeSlots() > best.freeSlots()) best = c;
+            }
+            if (best != null && (best.freeSlots() > 0 || conns.size() >= maxConnections)) {
+                return best;
             }
 
-            ChunkResponseHeader hdr = JsonUtil.MAPPER.treeToValue(node, ChunkResponseHeader.class);
-            byte[] data = in.readNBytes(hdr.lengthBytes);
-            if (data.length != hdr.lengthBytes) {
-                throw new IOException("Incomplete chunk: expected=" + hdr.lengthBytes + " got=" + data.length);
+            PeerConnection c;
+            try {
+                c = PeerConnection.open(peer, timeoutMs, idleTimeoutMs, pipelineDepth, discardedBytes);
+            } catch (PeerConnection.LegacyPeerException e) {
+                if (legacyUntil.put(key, System.currentTimeMillis() + LEGACY_RECHECK_MS) == null) {
+                    log.info("{}; using one connection per request", e.getMessage());
+                }
+                return null;
             }
-            return new ChunkPayload(hdr, data);
+            conns.add(c);
+            log.debug("Opened connection #{} to {}", conns.size(), peer);
+            return c;
         }
     }
 
     public record ChunkPayload(ChunkResponseHeader header, byte[] bytes) {}
 
+    public static final class PendingChunk {
+        private final PeerConnection conn;
+        private final ChunkRequest req;
+        private final CompletableFuture<ChunkPayload> future;
+        private final long sentAt;
+        private final long deadline;
+
+        private PendingChunk(PeerConnection conn, ChunkRequest req, CompletableFuture<ChunkPayload> future,
+                             long sentAt, long deadline) {
+            this.conn = conn;
+            this.req = req;
+            this.future = future;
+            this.sentAt = sentAt;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Waits for the chunk; throws {@link CancellationException} if it was
+         * cancelled. On timeout only this request is abandoned; the connection
+         * is closed just if it has delivered nothing since the request was
+         * sent, since then everything queued behind it is stuck too.
+         */
+        public ChunkPayload await() throws IOException {
+            try {
+                long waitMs = Math.max(1, deadline - System.currentTimeMillis());
+                return future.get(waitMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                cancel();
+                if (conn != null && conn.lastReadAt() < sentAt) conn.close();
+                throw new SocketTimeoutException("Chunk " + req.chunkIndex + " timed out");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException io) throw io;
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                future.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for chunk " + req.chunkIndex);
+            }
+        }
+
+        /** Abandons the request and asks the peer not to send it if it has not started. */
+        public void cancel() {
+            if (future.cancel(false) && conn != null) conn.cancel(req);
+        }
+    }
+
     private static void writeJsonLine(OutputStream out, Object obj) throws IOException {
         byte[] json = JsonUtil.MAPPER.writeValueAsBytes(obj);
         out.write(json);
@@ -19,6 +19,55 @@ public final class ControlMessages {
     public static class CatalogResponse {
         public String type = "CATALOG_RESPONSE";
         public List<SharedFile> files = new ArrayList<>();
+        public String catalogEpoch;
+        public long catalogVersion;
+    }
+
+    /** Asks only for catalog changes after a version the client already has. */
+    public static class CatalogSinceRequest extends ControlRequest {
+        public String catalogEpoch;
+        public long sinceVersion;
+
+        public CatalogSinceRequest() { this.type = "CATALOG_SINCE_REQUEST"; }
+    }
+
+    /**
+     * Entries added or replaced and hashes removed between two catalog
+     * versions. {@code full} means the server could not produce a delta
+     * (other epoch, or too old) and {@code added} is the whole catalog.
+     * On the wire {@code added} is empty and the entries follow as
+     * {@code pages} CATALOG_PAGE frames; the client fills it in.
+     */
+    public static class CatalogDelta {
+        public String type = "CATALOG_DELTA";
+        public String catalogEpoch;
+        public long fromVersion;
+        public long catalogVersion;
+        public boolean full;
+        public int pages;
+        public List<SharedFile> added = new ArrayList<>();
+        public List<String> removed = new ArrayList<>();
+    }
+
+    /** Header of one page of catalog entries; {@code lengthBytes} of JSON array follow the line. */
+    public static class CatalogPage {
+        public String type = "CATALOG_PAGE";
+        public int entries;
+        public int lengthBytes;
+    }
+
+    /** Asks for a file's chunk hash list, which catalogs leave out. */
+    public static class ChunkHashesRequest extends ControlRequest {
+        public String contentHash;
+
+        public ChunkHashesRequest() { this.type = "CHUNK_HASHES_REQUEST"; }
+    }
+
+    /** The list is trusted only if it hashes to the catalog entry's {@code chunkListHash}. */
+    public static class ChunkHashesResponse {
+        public String type = "CHUNK_HASHES_RESPONSE";
+        public String contentHash;
+        public List<String> chunkHashes = new ArrayList<>();
     }
 
     public static class ChunkRequest extends ControlRequest {
@@ -28,6 +77,33 @@ public final class ControlMessages {
         public ChunkRequest() { this.type = "CHUNK_REQUEST"; }
     }
 
+    /**
+     * Asks for {@code count} consecutive chunks; the server answers with one
+     * CHUNK_RESPONSE (or ERROR) per chunk, in order. Only sent to peers whose
+     * PROTOCOL_ACK advertised {@code maxRangeChunks}.
+     */
+    public static class ChunkRangeRequest extends ControlRequest {
+        public static final int MAX_CHUNKS = 32;
+
+        public String contentHash;
+        public int startIndex;
+        public int count;
+
+        public ChunkRangeRequest() { this.type = "CHUNK_RANGE_REQUEST"; }
+    }
+
+    /**
+     * Withdraws an earlier CHUNK_REQUEST on the same connection. Gets no reply
+     * of its own; if the chunk was not yet being sent, its response becomes an
+     * ERROR. Only sent to peers whose PROTOCOL_ACK set {@code cancelSupported}.
+     */
+    public static class ChunkCancel extends ControlRequest {
+        public String contentHash;
+        public int chunkIndex;
+
+        public ChunkCancel() { this.type = "CHUNK_CANCEL"; }
+    }
+
     public static class ChunkResponseHeader {
         public String type = "CHUNK_RESPONSE";
         public String contentHash;
@@ -37,6 +113,48 @@ public final class ControlMessages {
         public int numChunks;
     }
 
+    /** Sent first on a pooled connection to offer {@link BinaryFrames}; old servers answer ERROR. */
+    public static class ProtocolHello extends ControlRequest {
+        public int binaryVersion;
+
+        public ProtocolHello() { this.type = "PROTOCOL_HELLO"; }
+    }
+
+    /** binaryVersion 0 means: stay on JSON lines. maxRangeChunks 0 means: no range requests. */
+    public static class ProtocolAck {
+        public String type = "PROTOCOL_ACK";
+        public int binaryVersion;
+        public int maxRangeChunks;
+        public boolean cancelSupported;
+    }
+
+    /**
+     * Asks which chunks of a file the peer has. {@code sinceVersion} 0 asks
+     * for the full bitmap; otherwise the version from an earlier HAVE_RESPONSE,
+     * to get only the chunks added since.
+     */
+    public static class HaveRequest extends ControlRequest {
+        public String contentHash;
+        public int sinceVersion;
+
+        public HaveRequest() { this.type = "HAVE_REQUEST"; }
+    }
+
+    /**
+     * {@code complete} means the peer has the whole file. Otherwise exactly one
+     * of {@code bitmap} (base64 of a little-endian bit set, one bit per chunk)
+     * or {@code added} (chunk indices since the requested version) is set.
+     */
+    public static class HaveResponse {
+        public String type = "HAVE_RESPONSE";
+        public String contentHash;
+        public int numChunks;
+        public boolean complete;
+        public int version;
+        public String bitmap;
+        public int[] added;
+    }
+
     public static class ErrorResponse {
         public String type = "ERROR";
         public String message;
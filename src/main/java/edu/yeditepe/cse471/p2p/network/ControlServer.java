@@ -1,7 +1,6 @@
 package edu.yeditepe.cse471.p2p.network;
 
 import edu.yeditepe.cse471.p2p.model.SharedFile;
-import edu.yeditepe.cse471.p2p.network.ControlMessages.CatalogResponse;
 import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkRequest;
 import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkResponseHeader;
 import edu.yeditepe.cse471.p2p.network.ControlMessages.ControlRequest;
@@ -9,119 +8,164 @@ import edu.yeditepe.cse471.p2p.network.ControlMessages.ErrorResponse;
 import edu.yeditepe.cse471.p2p.streaming.Chunker;
 import edu.yeditepe.cse471.p2p.util.AppConfig;
 import edu.yeditepe.cse471.p2p.util.JsonUtil;
+import edu.yeditepe.cse471.p2p.util.Threads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.file.Path;
-import java.util.Collection;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static edu.yeditepe.cse471.p2p.network.ControlMessages.*;
 
 public class ControlServer {
     private static final Logger log = LoggerFactory.getLogger(ControlServer.class);
 
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final ExecutorService pool = Threads.newBlockingExecutor("control", 0);
+    private final FileHandleCache fileHandles = new FileHandleCache(AppConfig.openFileCacheSize());
+
+    static final int MAX_REQUEST_LINE = 64 * 1024;
+    // Handle cache key suffix, so a partial file and a later complete copy never share a handle.
+    private static final String PARTIAL_KEY = "#partial";
 
     private volatile boolean running;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocket;
+    private NioControlEngine nioEngine;
 
-    private final java.util.function.Supplier<Collection<SharedFile>> localCatalogSupplier;
-    private final java.util.function.Function<String, SharedFile> localFileByHash;
+    private final VersionedCatalog catalog;
+    private final CatalogPages catalogPages;
+    private final Map<String, PartialSource> partials = new ConcurrentHashMap<>();
+    // A replaced or removed entry may point at another file now; its cached handle must not be reused.
+    private final VersionedCatalog.Listener catalogListener = fileHandles::invalidate;
 
-    public ControlServer(
-            java.util.function.Supplier<Collection<SharedFile>> localCatalogSupplier,
-            java.util.function.Function<String, SharedFile> localFileByHash
-    ) {
-        this.localCatalogSupplier = localCatalogSupplier;
-        this.localFileByHash = localFileByHash;
+    public ControlServer(VersionedCatalog catalog) {
+        this.catalog = catalog;
+        this.catalogPages = new CatalogPages(catalog, AppConfig.catalogPageBytes());
+        catalog.addListener(catalogListener);
     }
 
     public synchronized void start() throws IOException {
-    if (running) return;
-
-    ServerSocket ss = null;
-    try {
-        ss = new ServerSocket(AppConfig.controlPort());
-        serverSocket = ss;
-        running = true;
-        pool.submit(this::acceptLoop);
-        log.info("Control server listening on port {}", AppConfig.controlPort());
-    } catch (IOException e) {
-        running = false;
-        if (ss != null) {
-            try { ss.close(); } catch (IOException ignored) {}
-   }
-        throw e;
+        if (running) return;
+
+        if ("blocking".equalsIgnoreCase(AppConfig.serverEngine())) {
+            startBlocking();
+        } else {
+            nioEngine = new NioControlEngine(this, AppConfig.serverEventLoops(), AppConfig.serverWorkers());
+            nioEngine.start(new InetSocketAddress(AppConfig.controlPort()));
+            running = true;
+            log.info("Control server (nio, {} loops) listening on port {}",
+                    AppConfig.serverEventLoops(), AppConfig.controlPort());
+        }
     }
-}
 
+    private void startBlocking() throws IOException {
+        ServerSocketChannel ss = null;
+        try {
+            // Channel-backed sockets so chunk bodies can go file -> socket via transferTo.
+            ss = ServerSocketChannel.open();
+            ss.bind(new InetSocketAddress(AppConfig.controlPort()));
+            serverSocket = ss;
+            running = true;
+            pool.submit(this::acceptLoop);
+            log.info("Control server (blocking) listening on port {}", AppConfig.controlPort());
+        } catch (IOException e) {
+            running = false;
+            if (ss != null) {
+                try { ss.close(); } catch (IOException ignored) {}
+            }
+            throw e;
+        }
+    }
 
     public synchronized void stop() {
         running = false;
         try { if (serverSocket != null) serverSocket.close(); } catch (Exception ignored) {}
+        if (nioEngine != null) nioEngine.stop();
         pool.shutdownNow();
+        catalog.removeListener(catalogListener);
+        fileHandles.close();
+    }
+
+    /** Serves the chunks {@code source} already has until {@link #unregisterPartial} is called. */
+    public void registerPartial(PartialSource source) {
+        String hash = source.file().contentHash;
+        partials.put(hash, source);
+        fileHandles.invalidate(hash + PARTIAL_KEY);
+        if (catalog.complete(hash) == null) catalog.put(source.file());
+    }
+
+    public void unregisterPartial(String contentHash) {
+        PartialSource p = partials.remove(contentHash);
+        fileHandles.invalidate(contentHash + PARTIAL_KEY);
+        if (p != null) catalog.remove(contentHash, p.file());
+    }
+
+    /** As {@link #unregisterPartial(String)}, but only if {@code source} is still the one registered. */
+    public void unregisterPartial(PartialSource source) {
+        String hash = source.file().contentHash;
+        if (!partials.remove(hash, source)) return;
+        fileHandles.invalidate(hash + PARTIAL_KEY);
+        catalog.remove(hash, source.file());
     }
 
     private void acceptLoop() {
         while (running) {
             try {
-                Socket sock = serverSocket.accept();
-                pool.submit(() -> handle(sock));
+                SocketChannel ch = serverSocket.accept();
+                pool.submit(() -> handle(ch));
             } catch (IOException e) {
                 if (running) log.warn("Accept error: {}", e.toString());
             }
         }
     }
 
-    private void handle(Socket sock) {
-        try (sock;
+    private void handle(SocketChannel ch) {
+        Socket sock = ch.socket();
+        try (ch;
              InputStream in = new BufferedInputStream(sock.getInputStream());
              OutputStream out = new BufferedOutputStream(sock.getOutputStream())) {
 
-            // Read a single JSON line.
-            String line = readLine(in, 64 * 1024);
-            if (line == null) return;
-
-            ControlRequest base = JsonUtil.MAPPER.readValue(line, ControlRequest.class);
-            if (base.type == null) return;
+            sock.setSoTimeout(AppConfig.connectionIdleMs() * 2);
+            sock.setTcpNoDelay(true);
 
-            switch (base.type) {
-                case "CATALOG_REQUEST" -> {
-                    CatalogResponse resp = new CatalogResponse();
-                    resp.files.addAll(localCatalogSupplier.get());
-                    writeJsonLine(out, resp);
+            // Serve JSON-line requests until the client closes the connection
+            // or switches it to binary frames.
+            boolean binary = false;
+            while (running && !binary) {
+                String line;
+                try {
+                    line = readLine(in, MAX_REQUEST_LINE);
+                } catch (SocketTimeoutException e) {
+                    return; // idle connection
                 }
-                case "CHUNK_REQUEST" -> {
-                    ChunkRequest req = JsonUtil.MAPPER.readValue(line, ChunkRequest.class);
-                    SharedFile f = localFileByHash.apply(req.contentHash);
-                    if (f == null || f.localPath == null) {
-                        ErrorResponse er = new ErrorResponse();
-                        er.message = "File not found: " + req.contentHash;
-                        writeJsonLine(out, er);
-                        return;
-                    }
-
-                    byte[] chunk = readChunk(f.localPath, req.chunkIndex, f.sizeBytes);
-                    ChunkResponseHeader hdr = new ChunkResponseHeader();
-                    hdr.contentHash = f.contentHash;
-                    hdr.chunkIndex = req.chunkIndex;
-                    hdr.lengthBytes = chunk.length;
-                    hdr.fileSizeBytes = f.sizeBytes;
-                    hdr.numChunks = f.numChunks;
-                    writeJsonLine(out, hdr);
-                    out.write(chunk);
-                    out.flush();
-                }
-                default -> {
-                    ErrorResponse er = new ErrorResponse();
-                    er.message = "Unknown request type: " + base.type;
-                    writeJsonLine(out, er);
+                if (line == null) return;
+
+                binary = sendAll(respond(line), in, out, ch);
+            }
+
+            DataInputStream din = new DataInputStream(in);
+            while (running) {
+                Object frame;
+                try {
+                    frame = BinaryFrames.read(din);
+                } catch (SocketTimeoutException e) {
+                    return;
                 }
+                if (frame == null) return;
+
+                sendAll(respondBinary(frame), in, out, ch);
             }
 
         } catch (Exception e) {
@@ -129,11 +173,275 @@ public class ControlServer {
         }
     }
 
-    private static void writeJsonLine(OutputStream out, Object obj) throws IOException {
+    /**
+     * Sends {@code resps} in order and returns whether the last one switched
+     * the connection to binary. Every response is closed, including the
+     * ones a failed send left unsent, so their file handles are released.
+     */
+    private static boolean sendAll(List<Response> resps, InputStream in, OutputStream out, SocketChannel ch)
+            throws IOException {
+        boolean binary = false;
+        try {
+            for (Response resp : resps) {
+                send(resp, in, out, ch);
+                binary = resp.switchToBinary;
+            }
+        } finally {
+            for (Response resp : resps) resp.close();
+        }
+        return binary;
+    }
+
+    private static void send(Response resp, InputStream in, OutputStream out, SocketChannel ch) throws IOException {
+        out.write(resp.head.array(), resp.head.arrayOffset(), resp.head.remaining());
+        if (resp.hasBody()) {
+            out.flush(); // header must precede the body written straight to the channel
+            transferChunk(resp.body.channel(), resp.bodyPos, (int) (resp.bodyEnd - resp.bodyPos), ch);
+        }
+
+        // Pipelined clients may already have sent the next request; batch the flush.
+        if (in.available() == 0) out.flush();
+    }
+
+    /**
+     * Builds the full response(s) to one request line, in wire order. Shared
+     * by both engines so they stay wire-compatible.
+     */
+    List<Response> respond(String line) throws IOException {
+        ControlRequest base = JsonUtil.MAPPER.readValue(line, ControlRequest.class);
+        if (base.type == null) {
+            return List.of(error("Missing request type", false));
+        }
+
+        switch (base.type) {
+            case "CATALOG_REQUEST" -> {
+                return List.of(new Response(ByteBuffer.wrap(catalogPages.legacyLine())));
+            }
+            case "CATALOG_SINCE_REQUEST" -> {
+                return catalogDelta(JsonUtil.MAPPER.readValue(line, CatalogSinceRequest.class));
+            }
+            case "HAVE_REQUEST" -> {
+                return List.of(haveResponse(JsonUtil.MAPPER.readValue(line, HaveRequest.class)));
+            }
+            case "CHUNK_HASHES_REQUEST" -> {
+                return List.of(chunkHashesResponse(JsonUtil.MAPPER.readValue(line, ChunkHashesRequest.class)));
+            }
+            case "CHUNK_REQUEST" -> {
+                ChunkRequest req = JsonUtil.MAPPER.readValue(line, ChunkRequest.class);
+                return List.of(chunkResponse(req.contentHash, req.chunkIndex, false));
+            }
+            case "CHUNK_RANGE_REQUEST" -> {
+                ChunkRangeRequest req = JsonUtil.MAPPER.readValue(line, ChunkRangeRequest.class);
+                return rangeResponse(req, false);
+            }
+            case "CHUNK_CANCEL" -> {
+                return List.of(Response.cancelMarker(JsonUtil.MAPPER.readValue(line, ChunkCancel.class)));
+            }
+            case "PROTOCOL_HELLO" -> {
+                ProtocolHello hello = JsonUtil.MAPPER.readValue(line, ProtocolHello.class);
+                ProtocolAck ack = new ProtocolAck();
+                ack.binaryVersion = hello.binaryVersion >= BinaryFrames.VERSION ? BinaryFrames.VERSION : 0;
+                ack.maxRangeChunks = ChunkRangeRequest.MAX_CHUNKS;
+                ack.cancelSupported = true;
+                Response resp = new Response(jsonLine(ack));
+                resp.switchToBinary = ack.binaryVersion > 0;
+                return List.of(resp);
+            }
+            default -> {
+                return List.of(error("Unknown request type: " + base.type, false));
+            }
+        }
+    }
+
+    /** Binary-mode counterpart of {@link #respond(String)}; takes a decoded frame. */
+    List<Response> respondBinary(Object frame) throws IOException {
+        if (frame instanceof ChunkRequest req) return List.of(chunkResponse(req.contentHash, req.chunkIndex, true));
+        if (frame instanceof ChunkRangeRequest req) return rangeResponse(req, true);
+        if (frame instanceof ChunkCancel req) return List.of(Response.cancelMarker(req));
+        return List.of(error("Unexpected frame: " + frame.getClass().getSimpleName(), true));
+    }
+
+    private List<Response> rangeResponse(ChunkRangeRequest req, boolean binary) throws IOException {
+        // The client expects exactly count responses; anything else would desync it.
+        if (req.count < 1 || req.count > ChunkRangeRequest.MAX_CHUNKS) {
+            throw new IOException("Bad range count: " + req.count);
+        }
+        List<Response> out = new ArrayList<>(req.count);
+        try {
+            for (int i = 0; i < req.count; i++) {
+                out.add(chunkResponse(req.contentHash, req.startIndex + i, binary));
+            }
+        } catch (IOException e) {
+            out.forEach(Response::close);
+            throw e;
+        }
+        return out;
+    }
+
+    /** A CATALOG_DELTA header and its pages; a full catalog reuses the pages cached for its version. */
+    private List<Response> catalogDelta(CatalogSinceRequest req) throws IOException {
+        CatalogDelta resp = new CatalogDelta();
+        resp.catalogEpoch = catalog.epoch();
+        List<byte[]> pages;
+        VersionedCatalog.Delta delta = catalog.since(req.catalogEpoch, req.sinceVersion);
+        if (delta != null) {
+            resp.fromVersion = delta.fromVersion();
+            resp.catalogVersion = delta.toVersion();
+            resp.removed.addAll(delta.removed());
+            pages = catalogPages.encode(delta.added());
+        } else {
+            CatalogPages.Snapshot all = catalogPages.full();
+            resp.full = true;
+            resp.catalogVersion = all.version();
+            pages = all.pages();
+        }
+        resp.pages = pages.size();
+
+        List<Response> out = new ArrayList<>(pages.size() + 1);
+        out.add(new Response(jsonLine(resp)));
+        for (byte[] page : pages) out.add(new Response(ByteBuffer.wrap(page)));
+        return out;
+    }
+
+    private Response haveResponse(HaveRequest req) throws IOException {
+        HaveResponse resp = new HaveResponse();
+        resp.contentHash = req.contentHash;
+        SharedFile f = catalog.complete(req.contentHash);
+        PartialSource p = partials.get(req.contentHash);
+        if (f != null && f.localPath != null) {
+            resp.numChunks = f.numChunks;
+            resp.complete = true;
+        } else if (p != null) {
+            resp.numChunks = p.file().numChunks;
+            if (req.sinceVersion > 0 && req.sinceVersion <= p.haveVersion()) {
+                resp.added = p.haveSince(req.sinceVersion);
+                resp.version = req.sinceVersion + resp.added.length;
+            } else {
+                // Version first: every chunk it counts is already in the bitmap read after it.
+                resp.version = p.haveVersion();
+                resp.bitmap = Base64.getEncoder().encodeToString(p.haveBitmap().toByteArray());
+            }
+        } else {
+            return error("File not found: " + req.contentHash, false);
+        }
+        return new Response(jsonLine(resp));
+    }
+
+    private Response chunkHashesResponse(ChunkHashesRequest req) throws IOException {
+        SharedFile f = catalog.complete(req.contentHash);
+        if (f == null || !f.hasChunkHashes()) {
+            PartialSource p = partials.get(req.contentHash);
+            f = p != null ? p.file() : null;
+        }
+        if (f == null || !f.hasChunkHashes()) return error("No chunk hashes for " + req.contentHash, false);
+        ChunkHashesResponse resp = new ChunkHashesResponse();
+        resp.contentHash = f.contentHash;
+        resp.chunkHashes = f.chunkHashes;
+        return new Response(jsonLine(resp));
+    }
+
+    private Response chunkResponse(String contentHash, int chunkIndex, boolean binary) throws IOException {
+        SharedFile f = catalog.complete(contentHash);
+        String handleKey = contentHash;
+        if (f == null || f.localPath == null) {
+            PartialSource p = partials.get(contentHash);
+            if (p == null) return error("File not found: " + contentHash, binary);
+            if (!p.hasChunk(chunkIndex)) return error("Chunk not available: " + chunkIndex, binary);
+            f = p.file();
+            handleKey = contentHash + PARTIAL_KEY;
+        }
+
+        long offset = Chunker.chunkOffset(chunkIndex);
+        int length = chunkLength(offset, f.sizeBytes);
+        ChunkResponseHeader hdr = new ChunkResponseHeader();
+        hdr.contentHash = f.contentHash;
+        hdr.chunkIndex = chunkIndex;
+        hdr.lengthBytes = length;
+        hdr.fileSizeBytes = f.sizeBytes;
+        hdr.numChunks = f.numChunks;
+
+        ByteBuffer head = binary ? BinaryFrames.encodeChunkResponse(hdr) : jsonLine(hdr);
+        Response resp = length == 0
+                ? new Response(head)
+                : new Response(head, fileHandles.acquire(handleKey, f.localPath), offset, offset + length);
+        resp.contentHash = f.contentHash;
+        resp.chunkIndex = chunkIndex;
+        resp.binary = binary;
+        return resp;
+    }
+
+    private static Response error(String message, boolean binary) throws IOException {
+        if (binary) return new Response(BinaryFrames.encodeError(message));
+        ErrorResponse er = new ErrorResponse();
+        er.message = message;
+        return new Response(jsonLine(er));
+    }
+
+    private static ByteBuffer jsonLine(Object obj) throws IOException {
         byte[] json = JsonUtil.MAPPER.writeValueAsBytes(obj);
-        out.write(json);
-        out.write('\n');
-        out.flush();
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        return ByteBuffer.wrap(line);
+    }
+
+    /**
+     * One encoded response: a JSON header line or binary frame plus an optional
+     * file region that is sent with {@code transferTo}. Closing releases the
+     * file handle.
+     */
+    static final class Response implements Closeable {
+        ByteBuffer head;
+        FileHandleCache.Handle body;
+        long bodyPos;
+        final long bodyEnd;
+        // Set on a PROTOCOL_ACK: requests after this one arrive as binary frames.
+        boolean switchToBinary;
+
+        // Identity of a chunk response, so a later CHUNK_CANCEL can find it.
+        String contentHash;
+        int chunkIndex = -1;
+        boolean binary;
+        // Non-null for the (empty) marker produced by a CHUNK_CANCEL request.
+        ChunkCancel cancels;
+
+        static Response cancelMarker(ChunkCancel cancel) {
+            Response r = new Response(ByteBuffer.allocate(0));
+            r.cancels = cancel;
+            return r;
+        }
+
+        Response(ByteBuffer head) {
+            this(head, null, 0, 0);
+        }
+
+        Response(ByteBuffer head, FileHandleCache.Handle body, long bodyPos, long bodyEnd) {
+            this.head = head;
+            this.body = body;
+            this.bodyPos = bodyPos;
+            this.bodyEnd = bodyEnd;
+        }
+
+        boolean hasBody() {
+            return body != null && bodyPos < bodyEnd;
+        }
+
+        boolean matches(ChunkCancel c) {
+            return chunkIndex == c.chunkIndex && contentHash != null && contentHash.equals(c.contentHash);
+        }
+
+        /** Turns a not-yet-started chunk response into a short ERROR; false if already sending. */
+        boolean cancelIfUnsent() throws IOException {
+            if (chunkIndex < 0 || head.position() > 0) return false;
+            close();
+            body = null;
+            head = error("Cancelled: chunk " + chunkIndex, binary).head;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (body != null) body.close();
+        }
     }
 
     private static String readLine(InputStream in, int maxBytes) throws IOException {
@@ -148,15 +456,20 @@ public class ControlServer {
         return bos.toString(java.nio.charset.StandardCharsets.UTF_8);
     }
 
-    private static byte[] readChunk(Path path, int chunkIndex, long fileSizeBytes) throws IOException {
-        long offset = Chunker.chunkOffset(chunkIndex);
-        if (offset < 0 || offset >= fileSizeBytes) return new byte[0];
-        int max = (int) Math.min(Chunker.CHUNK_SIZE, fileSizeBytes - offset);
-        byte[] buf = new byte[max];
-        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
-            raf.seek(offset);
-            raf.readFully(buf);
-        }
-        return buf;
+    private static int chunkLength(long offset, long fileSizeBytes) {
+        if (offset < 0 || offset >= fileSizeBytes) return 0;
+        return (int) Math.min(Chunker.CHUNK_SIZE, fileSizeBytes - offset);
+    }
+
+    /** Sends {@code length} bytes of the file to the socket without copying them through the heap. */
+    static void transferChunk(FileChannel fc, long offset, int length, SocketChannel ch) throws IOException {
+        // Positional transfer: the shared channel's own position is never touched.
+        long pos = offset;
+        long end = offset + length;
+        while (pos < end) {
+            long n = fc.transferTo(pos, end - pos, ch);
+            if (n <= 0) throw new EOFException("File shrank while serving chunk at " + offset);
+            pos += n;
+        }
     }
 }
@@ -0,0 +1,57 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers message ids for roughly {@code windowMs} in fixed memory: a ring
+ * of generations, each a set covering {@code windowMs / generations}. The
+ * oldest generation is cleared when the ring turns, or early once a
+ * generation reaches {@code maxPerGeneration} ids, so a burst shortens the
+ * window rather than growing the cache.
+ */
+class DedupCache {
+    private final List<Set<String>> generations;
+    private final long generationMs;
+    private final int maxPerGeneration;
+    private int current;
+    private long currentStartedMs;
+
+    DedupCache(int generations, long windowMs, int maxPerGeneration) {
+        int n = Math.max(2, generations);
+        this.generations = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) this.generations.add(new HashSet<>());
+        this.generationMs = Math.max(1, windowMs / n);
+        this.maxPerGeneration = Math.max(1, maxPerGeneration);
+    }
+
+    /** Records {@code id}; returns false if it was already seen within the window. */
+    synchronized boolean firstSeen(String id, long now) {
+        if (now - currentStartedMs >= generationMs) {
+            // Whole generations may have passed with no traffic; never clear more than the ring.
+            rotate((int) Math.min(generations.size(), (now - currentStartedMs) / generationMs), now);
+        }
+        for (Set<String> g : generations) {
+            if (g.contains(id)) return false;
+        }
+        if (generations.get(current).size() >= maxPerGeneration) rotate(1, now);
+        generations.get(current).add(id);
+        return true;
+    }
+
+    private void rotate(int steps, long now) {
+        for (int i = 0; i < steps; i++) {
+            current = (current + 1) % generations.size();
+            generations.get(current).clear();
+        }
+        currentStartedMs = now;
+    }
+
+    synchronized int size() {
+        int n = 0;
+        for (Set<String> g : generations) n += g.size();
+        return n;
+    }
+}
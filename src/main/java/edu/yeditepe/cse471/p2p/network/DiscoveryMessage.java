@@ -7,6 +7,12 @@ public class DiscoveryMessage {
     public String peerName;
     public int controlPort;
     public long epochMs;
+    public int hops;              // relays so far; 0 when sent by the peer itself
+    public int maxHops;           // relayed no further once hops reaches this
+    public String originAddress;  // filled in by the first relay; honoured only on the relay socket
+    public int relayPort;         // sender's relay socket port, 0 if it has none; set by the peer itself
+    public String catalogEpoch;   // with catalogVersion: lets receivers fetch only catalog changes
+    public long catalogVersion;
 
     public DiscoveryMessage() {}
 }
@@ -3,6 +3,7 @@ package edu.yeditepe.cse471.p2p.network;
 import edu.yeditepe.cse471.p2p.model.Peer;
 import edu.yeditepe.cse471.p2p.util.AppConfig;
 import edu.yeditepe.cse471.p2p.util.JsonUtil;
+import edu.yeditepe.cse471.p2p.util.Threads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,34 +11,56 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.*;
 
-
+/**
+ * Finds peers by multicasting ANNOUNCEs on the local segment. A peer also
+ * sends its own announces over unicast UDP to peers beyond the multicast
+ * scope: configured seeds ({@link AppConfig#discoverySeeds()}) and any peer
+ * that relayed to us. Only announces that arrived that way are forwarded
+ * again, to the other relays and, as final copies, to the relay sockets of
+ * peers on this segment. Each relay increments {@code hops} until
+ * {@code maxHops}, and message ids are remembered for a while to drop
+ * duplicates. If the relay port cannot be bound, discovery runs on
+ * multicast alone.
+ */
 public class DiscoveryService {
     private static final Logger log = LoggerFactory.getLogger(DiscoveryService.class);
+    private static final int MAX_CONTACTS = 64;
 
     private final PeerRegistry registry;
-    private final Consumer<Peer> onNewPeer;
+    private final VersionedCatalog catalog;
+    // Called for new peers and for peers announcing a catalog version we do not have.
+    private final Consumer<Peer> onCatalogStale;
 
     private MulticastSocket socket;
+    private DatagramSocket relaySocket;
     private InetAddress group;
     private volatile boolean running;
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(3, Threads.factory("discovery"));
     private Future<?> listenerFuture;
 
-
-    private final Set<String> seenMessageIds = ConcurrentHashMap.newKeySet();
+    private final DedupCache seenMessageIds = new DedupCache(6, AppConfig.discoveryDedupWindowMs(), 4096);
+    private final List<InetSocketAddress> seeds = new ArrayList<>();
+    // Relay endpoints that sent us something, with when we last heard from them.
+    private final Map<InetSocketAddress, Long> contacts = new ConcurrentHashMap<>();
+    // Relay endpoints of peers on this segment, from their own multicast announces.
+    private final Map<InetSocketAddress, Long> segmentRelays = new ConcurrentHashMap<>();
 
     public interface Consumer<T> {
         void accept(T t);
     }
 
-    public DiscoveryService(PeerRegistry registry, Consumer<Peer> onNewPeer) {
+    public DiscoveryService(PeerRegistry registry, VersionedCatalog catalog, Consumer<Peer> onCatalogStale) {
         this.registry = registry;
-        this.onNewPeer = onNewPeer;
+        this.catalog = catalog;
+        this.onCatalogStale = onCatalogStale;
     }
 
     public synchronized void start() throws IOException {
@@ -58,8 +81,23 @@ socket = ms;
         socket.joinGroup(group);
 
         listenerFuture = scheduler.submit(this::listenLoop);
+        if (AppConfig.discoveryMaxHops() > 0) {
+            try {
+                relaySocket = new DatagramSocket(AppConfig.discoveryRelayPort());
+            } catch (SocketException e) {
+                // E.g. a second instance on this host; multicast discovery still works.
+                log.warn("Discovery relay disabled, UDP port {} unavailable: {}",
+                        AppConfig.discoveryRelayPort(), e.toString());
+            }
+        }
+        if (relaySocket != null) {
+            seeds.addAll(parseSeeds(AppConfig.discoverySeeds()));
+            scheduler.submit(this::relayLoop);
+        }
         scheduler.scheduleAtFixedRate(this::safeAnnounce, 0,
                 AppConfig.discoveryAnnounceIntervalMs(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::sweep, AppConfig.discoveryAnnounceIntervalMs(),
+                AppConfig.discoveryAnnounceIntervalMs(), TimeUnit.MILLISECONDS);
 
         log.info("Discovery started on {}:{} TTL={}", group.getHostAddress(), AppConfig.discoveryPort(), AppConfig.discoveryTtl());
     }
@@ -72,9 +110,25 @@ socket = ms;
             try { socket.leaveGroup(group); } catch (Exception ignored) {}
             try { socket.close(); } catch (Exception ignored) {}
         }
+        if (relaySocket != null) relaySocket.close();
         log.info("Discovery stopped");
     }
 
+    /** Peers missing {@link AppConfig#peerExpiryAnnounces()} announces in a row are dropped. */
+    private static long peerExpiryMs() {
+        return (long) Math.max(1, AppConfig.peerExpiryAnnounces()) * AppConfig.discoveryAnnounceIntervalMs();
+    }
+
+    private void sweep() {
+        try {
+            for (Peer p : registry.expire(System.currentTimeMillis())) {
+                log.info("Peer {} expired after missed announces", p);
+            }
+        } catch (Exception e) {
+            log.warn("Peer sweep failed: {}", e.toString());
+        }
+    }
+
     private void safeAnnounce() {
         try {
             announce();
@@ -91,10 +145,21 @@ socket = ms;
         msg.peerName = AppConfig.peerName();
         msg.controlPort = AppConfig.controlPort();
         msg.epochMs = System.currentTimeMillis();
+        msg.maxHops = AppConfig.discoveryMaxHops();
+        msg.catalogEpoch = catalog.epoch();
+        msg.catalogVersion = catalog.version();
+        msg.relayPort = relaySocket != null ? relaySocket.getLocalPort() : 0;
 
         byte[] data = JsonUtil.MAPPER.writeValueAsBytes(msg);
         DatagramPacket pkt = new DatagramPacket(data, data.length, group, AppConfig.discoveryPort());
         socket.send(pkt);
+
+        if (relaySocket != null) {
+            long stale = msg.epochMs - 3L * AppConfig.discoveryAnnounceIntervalMs();
+            contacts.values().removeIf(heard -> heard < stale);
+            segmentRelays.values().removeIf(heard -> heard < stale);
+            sendToRelays(data, null);
+        }
     }
 
     private void listenLoop() {
@@ -104,29 +169,160 @@ socket = ms;
         while (running) {
             try {
                 socket.receive(pkt);
-                String json = new String(pkt.getData(), pkt.getOffset(), pkt.getLength(), StandardCharsets.UTF_8);
-                DiscoveryMessage msg = JsonUtil.MAPPER.readValue(json, DiscoveryMessage.class);
-                if (msg.peerId == null || msg.messageId == null) continue;
+                handle(pkt, null);
+            } catch (SocketException se) {
+                if (running) log.warn("Socket error: {}", se.toString());
+            } catch (Exception e) {
+                log.warn("Discovery parse error: {}", e.toString());
+            }
+        }
+    }
+
+    private void relayLoop() {
+        byte[] buf = new byte[64 * 1024];
+        DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+
+        while (running) {
+            try {
+                relaySocket.receive(pkt);
+                InetSocketAddress sender = (InetSocketAddress) pkt.getSocketAddress();
+                if (contacts.containsKey(sender) || contacts.size() < MAX_CONTACTS) {
+                    contacts.put(sender, System.currentTimeMillis());
+                }
+                handle(pkt, sender);
+            } catch (SocketException se) {
+                if (running) log.warn("Relay socket error: {}", se.toString());
+            } catch (Exception e) {
+                log.warn("Discovery relay parse error: {}", e.toString());
+            }
+        }
+    }
 
-                if (!seenMessageIds.add(msg.messageId)) continue;
-                if (AppConfig.PEER_ID.equals(msg.peerId)) continue; // ignore self
+    /** {@code relayedBy} is the relay endpoint it came from, or null if it was multicast on this segment. */
+    private void handle(DatagramPacket pkt, InetSocketAddress relayedBy) throws IOException {
+        String json = new String(pkt.getData(), pkt.getOffset(), pkt.getLength(), StandardCharsets.UTF_8);
+        DiscoveryMessage msg = JsonUtil.MAPPER.readValue(json, DiscoveryMessage.class);
+        if (msg.peerId == null || msg.messageId == null) return;
+        // On the multicast group the sender is the peer; a relayed copy there could name any address.
+        if (relayedBy == null && msg.hops > 0) return;
 
-                Peer peer = new Peer(msg.peerId, msg.peerName,
-                        pkt.getAddress(), msg.controlPort);
-                peer.lastSeen = Instant.now();
+        long now = System.currentTimeMillis();
+        if (!seenMessageIds.firstSeen(msg.messageId, now)) return;
+        if (AppConfig.PEER_ID.equals(msg.peerId)) return; // ignore self
 
-                boolean isNew = registry.peers().stream().noneMatch(p -> p.peerId.equals(peer.peerId));
-                registry.upsertPeer(peer);
+        // Relayed copies come from the relay, not from the peer that announced.
+        InetAddress origin = pkt.getAddress();
+        if (relayedBy != null && msg.originAddress != null) {
+            origin = parseNumericAddress(msg.originAddress);
+            if (origin == null) {
+                log.debug("Dropping relayed announce with origin {}", msg.originAddress);
+                return;
+            }
+        }
+        if (relayedBy == null && msg.relayPort > 0) {
+            InetSocketAddress endpoint = new InetSocketAddress(pkt.getAddress(), msg.relayPort);
+            if (segmentRelays.containsKey(endpoint) || segmentRelays.size() < MAX_CONTACTS) {
+                segmentRelays.put(endpoint, now);
+            }
+        }
+        Peer peer = new Peer(msg.peerId, msg.peerName, origin, msg.controlPort);
+        peer.lastSeen = Instant.now();
+
+        boolean isNew = registry.upsertPeer(peer, peerExpiryMs());
+        if ((isNew || registry.catalogStale(peer.peerId, msg.catalogEpoch, msg.catalogVersion)) && onCatalogStale != null) {
+            onCatalogStale.accept(peer);
+        }
+
+        // Multicast announces were already sent to the relays by the peer itself.
+        if (relayedBy != null && msg.hops < Math.min(msg.maxHops, AppConfig.discoveryMaxHops())) {
+            relay(msg, origin, relayedBy);
+        }
+    }
 
-                if (isNew && onNewPeer != null) {
-                    onNewPeer.accept(peer);
+    /**
+     * The address for an IPv4 or IPv6 literal, or null for anything else:
+     * InetAddress.getByName would resolve a host name (or a malformed IPv4
+     * literal) through DNS, and origin addresses come off the network.
+     */
+    private static InetAddress parseNumericAddress(String text) {
+        if (text.isEmpty() || text.length() > 45) return null;
+        if (text.indexOf(':') >= 0) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                boolean hex = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+                if (!hex && c != ':' && c != '.') return null;
+            }
+        } else {
+            String[] octets = text.split("\\.", -1);
+            if (octets.length != 4) return null;
+            for (String o : octets) {
+                if (o.isEmpty() || o.length() > 3) return null;
+                for (int i = 0; i < o.length(); i++) {
+                    if (o.charAt(i) < '0' || o.charAt(i) > '9') return null;
                 }
+                if (Integer.parseInt(o) > 255) return null;
+            }
+        }
+        try {
+            return InetAddress.getByName(text); // a literal by now, so no lookup
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
 
-            } catch (SocketException se) {
-                if (running) log.warn("Socket error: {}", se.toString());
-            } catch (Exception e) {
-                log.warn("Discovery parse error: {}", e.toString());
+    private void relay(DiscoveryMessage msg, InetAddress origin, InetSocketAddress relayedBy) throws IOException {
+        msg.hops++;
+        msg.originAddress = origin.getHostAddress();
+        byte[] data = JsonUtil.MAPPER.writeValueAsBytes(msg);
+        sendToRelays(data, relayedBy);
+
+        // Tell this segment about a peer beyond it; these copies are not relayed any further.
+        msg.hops = msg.maxHops;
+        byte[] last = JsonUtil.MAPPER.writeValueAsBytes(msg);
+        for (InetSocketAddress target : segmentRelays.keySet()) {
+            if (target.equals(relayedBy)) continue;
+            try {
+                relaySocket.send(new DatagramPacket(last, last.length, target));
+            } catch (IOException e) {
+                log.debug("Relay to {} failed: {}", target, e.toString());
+            }
+        }
+    }
+
+    private void sendToRelays(byte[] data, InetSocketAddress except) {
+        List<InetSocketAddress> targets = new ArrayList<>(seeds);
+        for (InetSocketAddress c : contacts.keySet()) {
+            if (!targets.contains(c)) targets.add(c);
+        }
+        for (InetSocketAddress target : targets) {
+            if (target.equals(except)) continue;
+            try {
+                relaySocket.send(new DatagramPacket(data, data.length, target));
+            } catch (IOException e) {
+                log.debug("Relay to {} failed: {}", target, e.toString());
+            }
+        }
+    }
+
+    static List<InetSocketAddress> parseSeeds(String spec) {
+        List<InetSocketAddress> res = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String s = part.trim();
+            if (s.isEmpty()) continue;
+            int colon = s.lastIndexOf(':');
+            try {
+                String host = colon > 0 ? s.substring(0, colon) : s;
+                int port = colon > 0 ? Integer.parseInt(s.substring(colon + 1)) : AppConfig.discoveryRelayPort();
+                InetSocketAddress addr = new InetSocketAddress(host, port);
+                if (addr.isUnresolved()) {
+                    log.warn("Ignoring unresolvable discovery seed {}", s);
+                } else {
+                    res.add(addr);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring bad discovery seed {}", s);
             }
         }
+        return res;
     }
 }
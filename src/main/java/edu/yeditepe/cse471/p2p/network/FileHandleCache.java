@@ -0,0 +1,142 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of read-only {@link FileChannel}s keyed by content hash.
+ * Callers borrow a {@link Handle} and must close it when done; an evicted or
+ * invalidated channel is only closed once every borrower has released it.
+ * Reads must be positional (e.g. {@code transferTo(position, ...)}) so many
+ * handler threads can share one channel.
+ */
+public class FileHandleCache implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(FileHandleCache.class);
+
+    private final int capacity;
+    // Access-ordered: iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public FileHandleCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public Handle acquire(String contentHash, Path path) throws IOException {
+        synchronized (entries) {
+            Entry e = entries.get(contentHash);
+            if (e != null && !e.path.equals(path)) {
+                // Catalog now points this hash at a different file.
+                entries.remove(contentHash);
+                retire(e);
+                e = null;
+            }
+            if (e == null) {
+                e = new Entry(path, FileChannel.open(path, StandardOpenOption.READ));
+                entries.put(contentHash, e);
+                evictOverflow();
+            }
+            e.refs++;
+            return new Handle(e);
+        }
+    }
+
+    /** Drops the cached channel for one hash, e.g. after the file was removed from the catalog. */
+    public void invalidate(String contentHash) {
+        synchronized (entries) {
+            Entry e = entries.remove(contentHash);
+            if (e != null) retire(e);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            List<Entry> all = new ArrayList<>(entries.values());
+            entries.clear();
+            all.forEach(this::retire);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        invalidateAll();
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > capacity && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            retire(eldest);
+        }
+    }
+
+    // Caller holds the lock.
+    private void retire(Entry e) {
+        e.retired = true;
+        if (e.refs == 0) closeQuietly(e);
+    }
+
+    private void release(Entry e) {
+        synchronized (entries) {
+            e.refs--;
+            if (e.retired && e.refs == 0) closeQuietly(e);
+        }
+    }
+
+    private static void closeQuietly(Entry e) {
+        try {
+            e.channel.close();
+        } catch (IOException ex) {
+            log.debug("Close failed for {}: {}", e.path, ex.toString());
+        }
+    }
+
+    private static final class Entry {
+        final Path path;
+        final FileChannel channel;
+        int refs;
+        boolean retired;
+
+        Entry(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    public final class Handle implements AutoCloseable {
+        private final Entry entry;
+        private boolean released;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        public FileChannel channel() {
+            return entry.channel;
+        }
+
+        @Override
+        public void close() {
+            if (released) return;
+            released = true;
+            release(entry);
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package edu.yeditepe.cse471.p2p.network;
 
 import edu.yeditepe.cse471.p2p.model.SharedFile;
+import edu.yeditepe.cse471.p2p.streaming.Chunker;
+import edu.yeditepe.cse471.p2p.util.AppConfig;
 import edu.yeditepe.cse471.p2p.util.HashUtil;
+import edu.yeditepe.cse471.p2p.util.Threads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LocalCatalogBuilder {
     private static final Logger log = LoggerFactory.getLogger(LocalCatalogBuilder.class);
@@ -16,36 +26,94 @@ public class LocalCatalogBuilder {
             "mp4", "mkv", "avi", "mov", "m4v", "webm"
     );
 
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    /** Hashing progress; called from hashing threads at most about once a second, and once at the end. */
+    public interface Progress {
+        void onProgress(int filesDone, int filesTotal, long bytesDone, long bytesTotal);
+    }
+
+    private final int threads;
+
+    public LocalCatalogBuilder() {
+        this(AppConfig.hashThreads());
+    }
+
+    public LocalCatalogBuilder(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
     public Collection<SharedFile> build(Path root) throws IOException {
+        return build(root, null);
+    }
+
+    /**
+     * Hashes every video under {@code root}, up to {@code threads} files at a
+     * time. Results are merged in walk order, so duplicates keep the first
+     * path found no matter which hash finished first.
+     */
+    public Collection<SharedFile> build(Path root, Progress progress) throws IOException {
         if (root == null) return List.of();
         if (!Files.isDirectory(root)) return List.of();
 
-        Map<String, SharedFile> byHash = new HashMap<>();
-
+        List<Path> videos;
         try (var walk = Files.walk(root)) {
-            walk.filter(Files::isRegularFile)
-                .filter(this::isVideo)
-                .forEach(p -> {
+            videos = walk.filter(Files::isRegularFile).filter(this::isVideo).toList();
+        }
+        long[] sizes = new long[videos.size()];
+        long totalBytes = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            try {
+                sizes[i] = Files.size(videos.get(i));
+            } catch (IOException e) {
+                sizes[i] = 0; // reported when hashing it fails
+            }
+            totalBytes += sizes[i];
+        }
+
+        Tracker tracker = new Tracker(videos.size(), totalBytes, progress);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, Threads.factory("catalog-hash"));
+        try {
+            List<Future<HashUtil.FileHashes>> hashes = new ArrayList<>(videos.size());
+            for (Path p : videos) {
+                hashes.add(pool.submit(() -> {
                     try {
-                        long size = Files.size(p);
-                        String hash = HashUtil.sha256Hex(p);
-                        String name = p.getFileName().toString();
-
-                        SharedFile existing = byHash.get(hash);
-                        if (existing == null) {
-                            SharedFile f = new SharedFile(hash, size, p, name);
-                            byHash.put(hash, f);
-                        } else {
-                            if (!existing.names.contains(name)) existing.names.add(name);
-                            // Prefer a stable localPath (first one found)
-                        }
-                    } catch (Exception e) {
-                        log.warn("Catalog hash failed for {}: {}", p, e.toString());
+                        return HashUtil.hashFile(p, Chunker.CHUNK_SIZE, tracker::addBytes);
+                    } finally {
+                        tracker.fileDone();
                     }
-                });
-        }
+                }));
+            }
+
+            Map<String, SharedFile> byHash = new LinkedHashMap<>();
+            for (int i = 0; i < videos.size(); i++) {
+                Path p = videos.get(i);
+                HashUtil.FileHashes h;
+                try {
+                    h = hashes.get(i).get();
+                } catch (ExecutionException e) {
+                    log.warn("Catalog hash failed for {}: {}", p, e.getCause().toString());
+                    continue;
+                }
+                String name = p.getFileName().toString();
+                SharedFile existing = byHash.get(h.contentHash());
+                if (existing == null) {
+                    SharedFile f = new SharedFile(h.contentHash(), sizes[i], p, name);
+                    f.attachChunkHashes(h.chunkHashes());
+                    byHash.put(h.contentHash(), f);
+                } else if (!existing.names.contains(name)) {
+                    existing.names.add(name);
+                }
+            }
+            tracker.report(true);
+            return byHash.values();
 
-        return byHash.values();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Catalog build interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
     private boolean isVideo(Path p) {
@@ -55,4 +123,38 @@ public class LocalCatalogBuilder {
         String ext = s.substring(dot + 1);
         return VIDEO_EXTS.contains(ext);
     }
+
+    /** Counts hashed files and bytes across threads and rate-limits progress calls. */
+    private static final class Tracker {
+        private final int filesTotal;
+        private final long bytesTotal;
+        private final Progress progress;
+        private final AtomicInteger filesDone = new AtomicInteger();
+        private final AtomicLong bytesDone = new AtomicLong();
+        private final AtomicLong lastReportMs = new AtomicLong(System.currentTimeMillis());
+
+        Tracker(int filesTotal, long bytesTotal, Progress progress) {
+            this.filesTotal = filesTotal;
+            this.bytesTotal = bytesTotal;
+            this.progress = progress;
+        }
+
+        void addBytes(long n) {
+            bytesDone.addAndGet(n);
+            report(false);
+        }
+
+        void fileDone() {
+            filesDone.incrementAndGet();
+            report(false);
+        }
+
+        void report(boolean last) {
+            if (progress == null) return;
+            long now = System.currentTimeMillis();
+            long prev = lastReportMs.get();
+            if (!last && (now - prev < PROGRESS_INTERVAL_MS || !lastReportMs.compareAndSet(prev, now))) return;
+            progress.onProgress(filesDone.get(), filesTotal, bytesDone.get(), bytesTotal);
+        }
+    }
 }
@@ -0,0 +1,196 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.yeditepe.cse471.p2p.streaming.Chunker;
+import edu.yeditepe.cse471.p2p.streaming.StreamSession;
+import edu.yeditepe.cse471.p2p.util.AppConfig;
+import edu.yeditepe.cse471.p2p.util.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Loopback HTTP server that lets a local player open an active stream while
+ * it is still downloading: {@code GET /stream/<contentHash>/<name>} with
+ * single-range {@code Range} support.
+ *
+ * <p>A request for bytes that have not arrived yet waits for them (up to
+ * {@link AppConfig#httpReadTimeoutMs()}) and moves their chunks to the front
+ * of the session's download queue, so seeking in the player works too.
+ */
+public class LocalStreamServer {
+    private static final Logger log = LoggerFactory.getLogger(LocalStreamServer.class);
+
+    private final Map<String, Entry> streams = new ConcurrentHashMap<>();
+    private final ExecutorService pool = Threads.newBlockingExecutor("http", 0);
+
+    private HttpServer server;
+
+    public synchronized void start() throws IOException {
+        if (server != null) return;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), AppConfig.httpPort()), 0);
+        server.createContext("/stream/", this::handle);
+        server.setExecutor(pool);
+        server.start();
+        log.info("Local stream server listening on {}", server.getAddress());
+    }
+
+    public synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        server = null;
+        pool.shutdownNow();
+        streams.clear();
+    }
+
+    /** Makes {@code session} playable over HTTP and returns its URL. */
+    public URI register(StreamSession session) {
+        streams.put(session.contentHash(), new Entry(session, session.outputFile()));
+        int port = server == null ? AppConfig.httpPort() : server.getAddress().getPort();
+        String name = URLEncoder.encode(session.displayName(), StandardCharsets.UTF_8).replace("+", "%20");
+        return URI.create("http://127.0.0.1:" + port + "/stream/" + session.contentHash() + "/" + name);
+    }
+
+    /** Keeps serving a completed stream after its buffer file was renamed. */
+    public void moved(String contentHash, Path file) {
+        streams.computeIfPresent(contentHash, (k, e) -> new Entry(e.session(), file));
+    }
+
+    public void unregister(String contentHash) {
+        streams.remove(contentHash);
+    }
+
+    /** As {@link #unregister(String)}, but only if {@code session} is still the one registered. */
+    public void unregister(StreamSession session) {
+        streams.computeIfPresent(session.contentHash(), (k, e) -> e.session() == session ? null : e);
+    }
+
+    private void handle(HttpExchange ex) {
+        try {
+            String method = ex.getRequestMethod();
+            boolean head = "HEAD".equalsIgnoreCase(method);
+            if (!head && !"GET".equalsIgnoreCase(method)) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            // /stream/<hash>[/<name>]
+            String[] parts = ex.getRequestURI().getPath().split("/");
+            Entry entry = parts.length >= 3 ? streams.get(parts[2]) : null;
+            if (entry == null) {
+                ex.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            long size = entry.session().fileSizeBytes();
+            String rangeHeader = ex.getRequestHeaders().getFirst("Range");
+            long[] range = parseRange(rangeHeader, size);
+            ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+            ex.getResponseHeaders().set("Content-Type", contentType(entry.session().displayName()));
+            if (range == null) {
+                ex.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                ex.sendResponseHeaders(416, -1);
+                return;
+            }
+
+            long start = range[0];
+            long end = range[1];
+            long length = end - start + 1;
+            boolean partial = rangeHeader != null && rangeHeader.startsWith("bytes=");
+            if (partial) ex.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            if (head || length == 0) {
+                ex.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                ex.sendResponseHeaders(partial ? 206 : 200, -1);
+                return;
+            }
+
+            ex.sendResponseHeaders(partial ? 206 : 200, length);
+            send(entry, start, end, ex.getResponseBody());
+        } catch (IOException e) {
+            // Players routinely drop connections when seeking.
+            log.debug("Stream request ended: {}", e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void send(Entry entry, long start, long end, OutputStream out) throws IOException, InterruptedException {
+        int timeoutMs = AppConfig.httpReadTimeoutMs();
+        byte[] buf = new byte[Chunker.CHUNK_SIZE];
+        try (FileChannel ch = FileChannel.open(entry.file(), StandardOpenOption.READ)) {
+            long pos = start;
+            while (pos <= end) {
+                if (!entry.session().awaitAvailable(pos, timeoutMs)) {
+                    throw new IOException("Timed out waiting for byte " + pos);
+                }
+                // Never read past the chunk we waited for.
+                long chunkEnd = Chunker.chunkOffset((int) (pos / Chunker.CHUNK_SIZE)) + Chunker.CHUNK_SIZE;
+                int n = (int) Math.min(Math.min(buf.length, end + 1 - pos), chunkEnd - pos);
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                while (bb.hasRemaining()) {
+                    if (ch.read(bb, pos + bb.position()) < 0) throw new IOException("Buffer file shorter than expected");
+                }
+                out.write(buf, 0, n);
+                pos += n;
+            }
+        }
+    }
+
+    /** {@code [start, end]} inclusive, the whole file if there is no header, or null if unsatisfiable. */
+    static long[] parseRange(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) return new long[]{0, size - 1};
+        String spec = header.substring(6).trim();
+        int comma = spec.indexOf(',');
+        if (comma >= 0) spec = spec.substring(0, comma).trim(); // multiple ranges: serve the first
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) return null;
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                String e = spec.substring(dash + 1);
+                end = e.isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(e));
+            }
+            if (start >= size || start > end) return null;
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String contentType(String name) {
+        String s = name.toLowerCase(Locale.ROOT);
+        if (s.endsWith(".mp4") || s.endsWith(".m4v")) return "video/mp4";
+        if (s.endsWith(".webm")) return "video/webm";
+        if (s.endsWith(".mkv")) return "video/x-matroska";
+        if (s.endsWith(".mov")) return "video/quicktime";
+        if (s.endsWith(".avi")) return "video/x-msvideo";
+        return "application/octet-stream";
+    }
+
+    private record Entry(StreamSession session, Path file) {}
+}
@@ -0,0 +1,414 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.network.ControlServer.Response;
+import edu.yeditepe.cse471.p2p.util.AppConfig;
+import edu.yeditepe.cse471.p2p.util.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine for {@link ControlServer}: a fixed set of selector
+ * threads, each owning a share of the connections. Request lines (or binary
+ * frames, after a PROTOCOL_HELLO) are parsed incrementally from whatever
+ * bytes arrive, responses are written as the socket becomes writable, and a
+ * connection stops being read while too many of its responses are queued.
+ *
+ * <p>Building a response parses JSON, reads the catalog and opens files, so
+ * each request is handed to a worker pool and its responses are posted back
+ * to the connection's loop. A connection has at most one request with the
+ * workers at a time, which keeps responses in request order.
+ */
+class NioControlEngine {
+    private static final Logger log = LoggerFactory.getLogger(NioControlEngine.class);
+
+    // Responses queued per connection before we stop reading from it.
+    private static final int MAX_QUEUED_RESPONSES = 16;
+
+    private final ControlServer responder;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final long idleTimeoutMs = AppConfig.connectionIdleMs() * 2L;
+    private final int workerThreads;
+
+    private ServerSocketChannel server;
+    private ExecutorService workers;
+    private volatile boolean running;
+
+    NioControlEngine(ControlServer responder, int eventLoops, int workerThreads) {
+        this.responder = responder;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        this.workerThreads = workerThreads;
+    }
+
+    void start(InetSocketAddress bindAddress) throws IOException {
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        try {
+            ss.configureBlocking(false);
+            ss.bind(bindAddress, 256);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(Selector.open());
+            }
+            ss.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            for (EventLoop l : loops) {
+                if (l != null) try { l.selector.close(); } catch (IOException ignored) {}
+            }
+            try { ss.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+
+        server = ss;
+        workers = Threads.newBlockingExecutor("control-worker", workerThreads);
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "control-nio-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    void stop() {
+        running = false;
+        for (EventLoop l : loops) {
+            if (l != null) l.selector.wakeup();
+        }
+        try { if (server != null) server.close(); } catch (IOException ignored) {}
+        // Requests already with a worker finish and post back; their loop closes what they return.
+        if (workers != null) workers.shutdown();
+    }
+
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> handoff = new ConcurrentLinkedQueue<>();
+        // Handled requests coming back from the workers.
+        final Queue<Runnable> completed = new ConcurrentLinkedQueue<>();
+        volatile boolean exited;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            try {
+                while (running) {
+                    selector.select(1000);
+                    registerHandoffs();
+                    runCompleted();
+
+                    var it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+
+                        if (key.isAcceptable()) {
+                            acceptAll();
+                            continue;
+                        }
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            c.onReady(key.isReadable());
+                        } catch (IOException | RuntimeException e) {
+                            c.fail(e);
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        sweepIdle(now);
+                        lastSweep = now;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) log.warn("Event loop failed: {}", e.toString());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection c) c.close();
+                }
+                SocketChannel ch;
+                while ((ch = handoff.poll()) != null) {
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+                exited = true;
+                runCompleted();
+            }
+        }
+
+        /** Runs {@code task} on this loop; once the loop has exited, on the caller (it only releases responses then). */
+        void post(Runnable task) {
+            completed.add(task);
+            if (exited) {
+                runCompleted();
+            } else {
+                selector.wakeup();
+            }
+        }
+
+        private void runCompleted() {
+            Runnable task;
+            while ((task = completed.poll()) != null) task.run();
+        }
+
+        private void acceptAll() {
+            while (true) {
+                SocketChannel ch;
+                try {
+                    ch = server.accept();
+                } catch (IOException e) {
+                    if (running) log.warn("Accept error: {}", e.toString());
+                    break;
+                }
+                if (ch == null) break;
+
+                EventLoop target = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                target.handoff.add(ch);
+                if (target != this) target.selector.wakeup();
+            }
+            // Ours would otherwise wait for the next select to return, up to a second.
+            registerHandoffs();
+        }
+
+        private void registerHandoffs() {
+            SocketChannel ch;
+            while ((ch = handoff.poll()) != null) {
+                try {
+                    ch.configureBlocking(false);
+                    ch.socket().setTcpNoDelay(true);
+                    SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, ch, key));
+                } catch (IOException e) {
+                    log.warn("Register failed: {}", e.toString());
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        private void sweepIdle(long now) {
+            List<Connection> idle = new ArrayList<>();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection c && c.isIdle(now)) idle.add(c);
+            }
+            idle.forEach(Connection::close);
+        }
+    }
+
+    private final class Connection {
+        final EventLoop loop;
+        final SocketChannel ch;
+        final SelectionKey key;
+
+        final ByteBuffer readBuf = ByteBuffer.allocate(8 * 1024);
+        byte[] line = new byte[256];
+        int lineLen;
+
+        final Deque<Response> outQueue = new ArrayDeque<>();
+        boolean binary;
+        boolean handling; // a request is with a worker
+        boolean inputClosed;
+        boolean closed;
+        long lastActivity = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel ch, SelectionKey key) {
+            this.loop = loop;
+            this.ch = ch;
+            this.key = key;
+        }
+
+        void onReady(boolean readable) throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (readable && !inputClosed && ch.read(readBuf) < 0) {
+                inputClosed = true;
+            }
+
+            // Parse what we can, write what the socket takes; repeat while a full
+            // queue was drained and buffered requests are still waiting. Checked
+            // after parsing: the queue may already have been full on entry.
+            while (true) {
+                parseBuffered();
+                boolean backlog = readBuf.position() > 0 && outQueue.size() >= MAX_QUEUED_RESPONSES;
+                boolean drained = flushOut();
+                if (!drained || !backlog) break;
+            }
+
+            if (inputClosed && outQueue.isEmpty() && !handling) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (!outQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            // A full read buffer means parsing is waiting on a worker; reading more would spin.
+            if (!inputClosed && readBuf.hasRemaining() && outQueue.size() < MAX_QUEUED_RESPONSES) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        private void parseBuffered() throws IOException {
+            readBuf.flip();
+            try {
+                while (!handling && readBuf.hasRemaining() && outQueue.size() < MAX_QUEUED_RESPONSES) {
+                    if (binary) {
+                        Object frame = parseFrame();
+                        if (frame == null) break; // partial frame
+                        dispatch(() -> responder.respondBinary(frame));
+                        continue;
+                    }
+
+                    byte b = readBuf.get();
+                    if (b != '\n') {
+                        appendToLine(b);
+                        continue;
+                    }
+                    String req = new String(line, 0, lineLen, StandardCharsets.UTF_8);
+                    lineLen = 0;
+                    dispatch(() -> responder.respond(req));
+                }
+            } finally {
+                readBuf.compact();
+            }
+        }
+
+        /** Hands one request to a worker; parsing resumes once its responses are back on the loop. */
+        private void dispatch(Callable<List<Response>> handler) throws IOException {
+            try {
+                workers.execute(() -> {
+                    List<Response> resps = null;
+                    Exception error = null;
+                    try {
+                        resps = handler.call();
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                    List<Response> done = resps;
+                    Exception failure = error;
+                    loop.post(() -> onHandled(done, failure));
+                });
+            } catch (RejectedExecutionException e) {
+                throw new EOFException("Server stopping");
+            }
+            handling = true;
+        }
+
+        /** Runs on the loop with a worker's result: queue the responses, then carry on reading and writing. */
+        private void onHandled(List<Response> resps, Exception error) {
+            handling = false;
+            if (closed) {
+                if (resps != null) resps.forEach(Response::close);
+                return;
+            }
+            try {
+                if (error != null) throw error;
+                for (int i = 0; i < resps.size(); i++) {
+                    Response resp = resps.get(i);
+                    try {
+                        enqueue(resp);
+                    } catch (IOException | RuntimeException e) {
+                        for (Response rest : resps.subList(i, resps.size())) rest.close();
+                        throw e;
+                    }
+                    if (resp.switchToBinary) binary = true;
+                }
+                onReady(false);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void enqueue(Response resp) throws IOException {
+            if (resp.cancels == null) {
+                outQueue.addLast(resp);
+                return;
+            }
+            // A cancel has no reply; it only shrinks a queued chunk response to an ERROR.
+            for (Response queued : outQueue) {
+                if (queued.matches(resp.cancels) && queued.cancelIfUnsent()) break;
+            }
+        }
+
+        /** Decodes the next buffered frame, or returns null when it has not fully arrived. */
+        private Object parseFrame() throws IOException {
+            if (readBuf.remaining() < 4) return null;
+            int length = readBuf.getInt(readBuf.position());
+            // Request frames are tiny; anything that cannot fit the read buffer is bogus.
+            if (length > readBuf.capacity() - 4) throw new IOException("Bad frame length: " + length);
+            BinaryFrames.checkLength(length);
+            if (readBuf.remaining() < 4 + length) return null;
+
+            readBuf.position(readBuf.position() + 4);
+            ByteBuffer frame = readBuf.slice();
+            frame.limit(length);
+            readBuf.position(readBuf.position() + length);
+            return BinaryFrames.decode(frame);
+        }
+
+        private void appendToLine(byte b) throws IOException {
+            if (lineLen == line.length) {
+                if (lineLen >= ControlServer.MAX_REQUEST_LINE) throw new IOException("Line too long");
+                line = Arrays.copyOf(line, Math.min(ControlServer.MAX_REQUEST_LINE, lineLen * 2));
+            }
+            line[lineLen++] = b;
+        }
+
+        /** Writes queued responses until done or the socket would block; returns true when drained. */
+        private boolean flushOut() throws IOException {
+            while (!outQueue.isEmpty()) {
+                Response r = outQueue.peekFirst();
+                if (r.head.hasRemaining()) {
+                    ch.write(r.head);
+                    if (r.head.hasRemaining()) return false;
+                }
+                if (r.hasBody()) {
+                    FileChannel fc = r.body.channel();
+                    long n = fc.transferTo(r.bodyPos, r.bodyEnd - r.bodyPos, ch);
+                    if (n == 0 && r.bodyPos >= fc.size()) {
+                        throw new IOException("File shrank while serving chunk");
+                    }
+                    r.bodyPos += n;
+                    if (r.hasBody()) return false;
+                }
+                outQueue.pollFirst();
+                r.close();
+            }
+            return true;
+        }
+
+        boolean isIdle(long now) {
+            return !handling && outQueue.isEmpty() && now - lastActivity > idleTimeoutMs;
+        }
+
+        void fail(Exception e) {
+            if (!(e instanceof EOFException)) log.warn("Control handler error: {}", e.toString());
+            close();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            key.cancel();
+            try { ch.close(); } catch (IOException ignored) {}
+            Response r;
+            while ((r = outQueue.pollFirst()) != null) r.close();
+        }
+    }
+}
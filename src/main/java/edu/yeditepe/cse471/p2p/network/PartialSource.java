@@ -0,0 +1,28 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.model.SharedFile;
+
+import java.util.BitSet;
+
+/**
+ * A file this peer is still downloading but can already serve in part.
+ * {@link ControlServer} answers chunk requests for it only for chunks it has,
+ * and HAVE_REQUESTs with its have bitmap or the chunks added since a version.
+ *
+ * <p>The have-set only grows. Its version is the number of chunks received so
+ * far, each chunk counted once in arrival order.
+ */
+public interface PartialSource {
+    /** Catalog entry for the file; {@code localPath} is the file being written. */
+    SharedFile file();
+
+    boolean hasChunk(int chunkIndex);
+
+    int haveVersion();
+
+    /** Every chunk held now; includes at least the first {@link #haveVersion()} chunks read before it. */
+    BitSet haveBitmap();
+
+    /** Chunks received after the have-set reached {@code sinceVersion}, in arrival order. */
+    int[] haveSince(int sinceVersion);
+}
@@ -0,0 +1,338 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.model.Peer;
+import edu.yeditepe.cse471.p2p.network.ControlClient.ChunkPayload;
+import edu.yeditepe.cse471.p2p.util.AppConfig;
+import edu.yeditepe.cse471.p2p.util.JsonUtil;
+import edu.yeditepe.cse471.p2p.util.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static edu.yeditepe.cse471.p2p.network.ControlMessages.*;
+
+/**
+ * One long-lived control connection to a peer. Requests are pipelined: up to
+ * {@code maxInFlight} requests may be written before their responses arrive.
+ * The server answers in request order, so a single reader thread matches
+ * responses to a FIFO of pending futures.
+ */
+class PeerConnection implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PeerConnection.class);
+
+    private final Peer peer;
+    private final Socket sock;
+    private final OutputStream out;
+    private final InputStream in;
+    private final Semaphore slots;
+    private final int maxInFlight;
+    // Negotiated on open. Old peers answer the hello with ERROR: JSON lines, no ranges.
+    private boolean binary;
+    private int maxRangeChunks;
+    private boolean cancelSupported;
+    // Bytes of responses that arrived for requests already cancelled locally.
+    private final LongAdder discardedBytes;
+
+    // Responses still to be read, in wire order. Guarded by itself, never across I/O.
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    // Serializes writes so request order == pending order. A lock rather than a monitor
+    // so a virtual thread blocked in the write does not pin its carrier thread.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean closed;
+    // When the last response was read in full or discarded.
+    private volatile long lastReadAt = System.currentTimeMillis();
+
+    /**
+     * One expected response. {@code last} marks the final response of its
+     * request: the request's pipeline slot is freed once that has been read
+     * or discarded, not when the future completes, since a cancelled
+     * request's response may still be on the wire.
+     */
+    private record Pending(CompletableFuture<ChunkPayload> future, boolean last) {}
+
+    private PeerConnection(Peer peer, Socket sock, int maxInFlight, LongAdder discardedBytes) throws IOException {
+        this.peer = peer;
+        this.discardedBytes = discardedBytes;
+        this.sock = sock;
+        this.out = new BufferedOutputStream(sock.getOutputStream());
+        this.in = new BufferedInputStream(sock.getInputStream());
+        this.maxInFlight = maxInFlight;
+        this.slots = new Semaphore(maxInFlight);
+    }
+
+    static PeerConnection open(Peer peer, int connectTimeoutMs, int idleTimeoutMs, int maxInFlight,
+                               LongAdder discardedBytes) throws IOException {
+        Socket sock = new Socket();
+        try {
+            sock.connect(new InetSocketAddress(peer.address, peer.controlPort), connectTimeoutMs);
+            sock.setSoTimeout(connectTimeoutMs);
+            sock.setTcpNoDelay(true);
+            PeerConnection conn = new PeerConnection(peer, sock, Math.max(1, maxInFlight), discardedBytes);
+            conn.negotiate();
+            sock.setSoTimeout(idleTimeoutMs);
+            Threads.start("peer-conn-" + peer.peerName, conn::readLoop);
+            return conn;
+        } catch (IOException e) {
+            try { sock.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    /**
+     * Offers binary framing and learns range support. Peers from before the
+     * hello answer ERROR and close (they serve one request per connection),
+     * which is reported as {@link LegacyPeerException}.
+     */
+    private void negotiate() throws IOException {
+        ProtocolHello hello = new ProtocolHello();
+        hello.binaryVersion = AppConfig.binaryFraming() ? BinaryFrames.VERSION : 0;
+        out.write(JsonUtil.MAPPER.writeValueAsBytes(hello));
+        out.write('\n');
+        out.flush();
+
+        String line = readLine(in, 64 * 1024);
+        if (line == null) throw new LegacyPeerException(peer + " closed the connection after PROTOCOL_HELLO");
+        var node = JsonUtil.MAPPER.readTree(line);
+        String type = node.has("type") ? node.get("type").asText() : "";
+        if (!"PROTOCOL_ACK".equals(type)) throw new LegacyPeerException(peer + " answered PROTOCOL_HELLO with " + type);
+        ProtocolAck ack = JsonUtil.MAPPER.treeToValue(node, ProtocolAck.class);
+        binary = ack.binaryVersion == BinaryFrames.VERSION;
+        maxRangeChunks = ack.maxRangeChunks;
+        cancelSupported = ack.cancelSupported;
+    }
+
+    /** The peer does not keep connections open; send it one request per connection instead. */
+    static final class LegacyPeerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LegacyPeerException(String message) {
+            super(message);
+        }
+    }
+
+    int maxRangeChunks() {
+        return maxRangeChunks;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int inFlight() {
+        return maxInFlight - slots.availablePermits();
+    }
+
+    int freeSlots() {
+        return slots.availablePermits();
+    }
+
+    /** When the reader last finished a response, in epoch millis. */
+    long lastReadAt() {
+        return lastReadAt;
+    }
+
+    /**
+     * Sends a chunk request on this connection, waiting at most {@code timeoutMs}
+     * for a free pipeline slot. The returned future completes when the response
+     * has been read in full.
+     */
+    CompletableFuture<ChunkPayload> send(ChunkRequest req, int timeoutMs) throws IOException {
+        ByteBuffer encoded = binary ? BinaryFrames.encodeChunkRequest(req) : jsonLine(req);
+        return enqueue(encoded, 1, timeoutMs).get(0);
+    }
+
+    /**
+     * Sends one range request occupying a single pipeline slot; returns one
+     * future per chunk, in index order. Only valid if {@link #maxRangeChunks()}
+     * allows {@code req.count}.
+     */
+    List<CompletableFuture<ChunkPayload>> sendRange(ChunkRangeRequest req, int timeoutMs) throws IOException {
+        if (req.count < 1 || req.count > maxRangeChunks) {
+            throw new IllegalArgumentException("Range of " + req.count + " not supported by " + peer);
+        }
+        ByteBuffer encoded = binary ? BinaryFrames.encodeChunkRange(req) : jsonLine(req);
+        return enqueue(encoded, req.count, timeoutMs);
+    }
+
+    /**
+     * Asks the peer to skip a request whose future was cancelled; for a chunk
+     * of a range request, just that chunk. Best effort: if the response is
+     * already on its way it is read and discarded.
+     */
+    void cancel(ChunkRequest req) {
+        if (!cancelSupported || closed) return;
+        ChunkCancel c = new ChunkCancel();
+        c.contentHash = req.contentHash;
+        c.chunkIndex = req.chunkIndex;
+        writeLock.lock();
+        try {
+            if (closed) return;
+            ByteBuffer encoded = binary ? BinaryFrames.encodeChunkCancel(c) : jsonLine(c);
+            out.write(encoded.array(), encoded.arrayOffset(), encoded.remaining());
+            out.flush();
+        } catch (IOException e) {
+            close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private List<CompletableFuture<ChunkPayload>> enqueue(ByteBuffer request, int responses, int timeoutMs)
+            throws IOException {
+        try {
+            if (!slots.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("No free pipeline slot to " + peer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for pipeline slot");
+        }
+
+        List<CompletableFuture<ChunkPayload>> futures = new ArrayList<>(responses);
+        for (int i = 0; i < responses; i++) futures.add(new CompletableFuture<>());
+
+        writeLock.lock();
+        try {
+            synchronized (pending) {
+                if (closed) {
+                    slots.release();
+                    futures.forEach(f -> f.completeExceptionally(new IOException("Connection closed: " + peer)));
+                    return futures;
+                }
+                for (int i = 0; i < responses; i++) pending.add(new Pending(futures.get(i), i == responses - 1));
+            }
+            out.write(request.array(), request.arrayOffset(), request.remaining());
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        return futures;
+    }
+
+    private static ByteBuffer jsonLine(Object obj) throws IOException {
+        byte[] json = JsonUtil.MAPPER.writeValueAsBytes(obj);
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        return ByteBuffer.wrap(line);
+    }
+
+    private void readLoop() {
+        IOException failure = null;
+        try {
+            DataInputStream din = new DataInputStream(in);
+            while (!closed) {
+                Object resp;
+                try {
+                    resp = binary ? BinaryFrames.read(din) : readJsonResponse();
+                } catch (SocketTimeoutException e) {
+                    if (inFlight() == 0) break; // idle: let the pool reconnect on demand
+                    throw e;
+                }
+                if (resp == null) throw new EOFException("Connection closed by " + peer);
+
+                Pending p;
+                synchronized (pending) {
+                    p = pending.pollFirst();
+                }
+                if (p == null) throw new IOException("Unsolicited response from " + peer);
+                try {
+                    complete(p.future, resp, din);
+                } finally {
+                    if (p.last) slots.release();
+                }
+                lastReadAt = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            failure = e;
+            if (!closed) log.debug("Connection to {} failed: {}", peer, e.toString());
+        } finally {
+            close(failure);
+        }
+    }
+
+    /** Reads the body that follows {@code resp}, if any, and completes {@code f} with it. */
+    private void complete(CompletableFuture<ChunkPayload> f, Object resp, InputStream in) throws IOException {
+        if (resp instanceof ErrorResponse er) {
+            f.completeExceptionally(new IOException(er.message));
+            return;
+        }
+        if (!(resp instanceof ChunkResponseHeader hdr)) {
+            f.completeExceptionally(new IOException("Unexpected chunk response: " + resp));
+            throw new IOException("Protocol desync with " + peer);
+        }
+
+        if (f.isDone()) {
+            // Cancelled locally while the peer was already sending it.
+            in.skipNBytes(hdr.lengthBytes);
+            discardedBytes.add(hdr.lengthBytes);
+            return;
+        }
+        byte[] data = in.readNBytes(hdr.lengthBytes);
+        if (data.length != hdr.lengthBytes) {
+            IOException e = new IOException("Incomplete chunk: expected=" + hdr.lengthBytes + " got=" + data.length);
+            f.completeExceptionally(e);
+            throw e;
+        }
+        f.complete(new ChunkPayload(hdr, data));
+    }
+
+    private Object readJsonResponse() throws IOException {
+        String line = readLine(in, 64 * 1024);
+        if (line == null) return null;
+        var node = JsonUtil.MAPPER.readTree(line);
+        String type = node.has("type") ? node.get("type").asText() : "";
+        return switch (type) {
+            case "ERROR" -> JsonUtil.MAPPER.treeToValue(node, ErrorResponse.class);
+            case "CHUNK_RESPONSE" -> JsonUtil.MAPPER.treeToValue(node, ChunkResponseHeader.class);
+            default -> type;
+        };
+    }
+
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    private void close(IOException cause) {
+        synchronized (pending) {
+            closed = true;
+            Pending p;
+            while ((p = pending.pollFirst()) != null) {
+                p.future.completeExceptionally(cause != null ? cause : new IOException("Connection closed: " + peer));
+                if (p.last) slots.release();
+            }
+        }
+        try { sock.close(); } catch (IOException ignored) {}
+    }
+
+    private static String readLine(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            bos.write(b);
+            if (bos.size() > maxBytes) throw new IOException("Line too long");
+        }
+        if (bos.size() == 0 && b == -1) return null;
+        return bos.toString(StandardCharsets.UTF_8);
+    }
+}
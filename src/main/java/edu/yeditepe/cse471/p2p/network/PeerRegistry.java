@@ -3,35 +3,178 @@ package edu.yeditepe.cse471.p2p.network;
 import edu.yeditepe.cse471.p2p.model.AvailableVideo;
 import edu.yeditepe.cse471.p2p.model.Peer;
 import edu.yeditepe.cse471.p2p.model.SharedFile;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.CatalogDelta;
 
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 public class PeerRegistry {
+    /** Catalog and membership changes; called on the thread that made the change. */
+    public interface Listener {
+        default void onPeerJoined(Peer peer) {}
+        default void onPeerCatalog(Peer peer, Map<String, SharedFile> catalogByHash) {}
+        /** The peer left: it expired (see {@link #expire}) or was removed explicitly. */
+        default void onPeerRemoved(Peer peer) {}
+    }
+
+    private record Deadline(String peerId, long atMs) {}
+
+    /** The version of a peer's catalog we hold; epoch is null for peers without catalog versions. */
+    public record CatalogVersion(String epoch, long version) {}
+
     private final Map<String, Peer> peers = new ConcurrentHashMap<>();
     private final Map<String, Map<String, SharedFile>> catalogsByPeerId = new ConcurrentHashMap<>();
+    private final Map<String, CatalogVersion> catalogVersions = new ConcurrentHashMap<>();
     private final Map<String, SharedFile> localCatalog = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Expiry times, earliest first, at most one entry per peer. Sightings only move expiresAt;
+    // an entry that comes due for a peer seen since is re-queued at its newer time.
+    private final PriorityQueue<Deadline> deadlines = new PriorityQueue<>(Comparator.comparingLong(Deadline::atMs));
+    private final Map<String, Long> expiresAt = new HashMap<>();
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Records a sighting of {@code peer} (its {@code lastSeen}) and returns
+     * true if it was not known yet. Without another sighting it expires
+     * {@code expiryMs} after this one.
+     */
+    public boolean upsertPeer(Peer peer, long expiryMs) {
+        if (peer.lastSeen == null) peer.lastSeen = Instant.now();
+        long at = peer.lastSeen.toEpochMilli() + expiryMs;
+        boolean isNew;
+        // Under the same lock as expire, so a peer seen while it expires is either kept or re-joined.
+        synchronized (deadlines) {
+            isNew = peers.put(peer.peerId, peer) == null;
+            if (expiresAt.put(peer.peerId, at) == null) deadlines.add(new Deadline(peer.peerId, at));
+        }
+        if (isNew) {
+            for (Listener l : listeners) l.onPeerJoined(peer);
+        }
+        return isNew;
+    }
 
-    public void upsertPeer(Peer peer) {
-        peers.put(peer.peerId, peer);
+    /** Removes every peer whose latest deadline has passed, with its catalog, and returns them. */
+    public List<Peer> expire(long nowMs) {
+        List<Peer> expired = new ArrayList<>();
+        synchronized (deadlines) {
+            while (!deadlines.isEmpty() && deadlines.peek().atMs() <= nowMs) {
+                String id = deadlines.poll().peerId();
+                Long at = expiresAt.get(id);
+                if (at == null) continue;
+                if (at > nowMs) {
+                    deadlines.add(new Deadline(id, at));
+                } else {
+                    Peer p = detach(id);
+                    if (p != null) expired.add(p);
+                }
+            }
+        }
+        for (Peer p : expired) {
+            for (Listener l : listeners) l.onPeerRemoved(p);
+        }
+        return expired;
     }
 
     public void removePeer(String peerId) {
-        peers.remove(peerId);
+        Peer peer;
+        synchronized (deadlines) {
+            peer = detach(peerId);
+            // expire() drops its entry when it polls it; here it is still queued, and a rejoin would add another.
+            if (peer != null) deadlines.removeIf(d -> d.peerId().equals(peerId));
+        }
+        if (peer != null) {
+            for (Listener l : listeners) l.onPeerRemoved(peer);
+        }
+    }
+
+    // Caller holds the deadlines lock.
+    private Peer detach(String peerId) {
+        expiresAt.remove(peerId);
         catalogsByPeerId.remove(peerId);
+        catalogVersions.remove(peerId);
+        return peers.remove(peerId);
     }
 
     public Collection<Peer> peers() {
         return peers.values();
     }
 
-    public void setPeerCatalog(String peerId, List<SharedFile> files) {
+    /**
+     * Replaces a peer's catalog with one from a peer that does not version its
+     * catalog. Returns false, keeping nothing, if the peer has left meanwhile.
+     */
+    public synchronized boolean setPeerCatalog(String peerId, List<SharedFile> files) {
         Map<String, SharedFile> map = new HashMap<>();
         for (SharedFile f : files) {
             map.put(f.contentHash, f);
         }
-        catalogsByPeerId.put(peerId, map);
+        return publishCatalog(peerId, new CatalogVersion(null, 0), map);
+    }
+
+    /**
+     * Applies a catalog delta from {@code peerId}. A delta that does not start
+     * at the version we hold is ignored (returns false) unless it is full, and
+     * so is any delta for a peer that has left.
+     */
+    public synchronized boolean applyCatalogDelta(String peerId, CatalogDelta delta) {
+        Map<String, SharedFile> map;
+        if (delta.full) {
+            map = new HashMap<>();
+        } else {
+            CatalogVersion known = catalogVersions.get(peerId);
+            Map<String, SharedFile> current = catalogsByPeerId.get(peerId);
+            if (known == null || current == null || !Objects.equals(known.epoch(), delta.catalogEpoch)
+                    || known.version() != delta.fromVersion) {
+                return false;
+            }
+            map = new HashMap<>(current);
+        }
+        for (SharedFile f : delta.added) map.put(f.contentHash, f);
+        for (String hash : delta.removed) map.remove(hash);
+        return publishCatalog(peerId, new CatalogVersion(delta.catalogEpoch, delta.catalogVersion), map);
+    }
+
+    public CatalogVersion catalogVersion(String peerId) {
+        return catalogVersions.get(peerId);
+    }
+
+    /** Whether an announce of {@code epoch}/{@code version} means our copy of the peer's catalog is out of date. */
+    public boolean catalogStale(String peerId, String epoch, long version) {
+        CatalogVersion known = catalogVersions.get(peerId);
+        if (known == null) return true;
+        if (epoch == null) return false;
+        return !epoch.equals(known.epoch()) || version > known.version();
+    }
+
+    // Caller holds this registry's lock, which keeps listeners seeing a peer's catalogs in order.
+    private boolean publishCatalog(String peerId, CatalogVersion version, Map<String, SharedFile> map) {
+        Peer peer;
+        // A fetch can finish after the peer expired; under the expiry lock, so it cannot outlive detach().
+        synchronized (deadlines) {
+            peer = peers.get(peerId);
+            if (peer == null) return false;
+            catalogVersions.put(peerId, version);
+            catalogsByPeerId.put(peerId, map);
+        }
+        Map<String, SharedFile> view = Collections.unmodifiableMap(map);
+        for (Listener l : listeners) l.onPeerCatalog(peer, view);
+        return true;
+    }
+
+    /** {@code peerId}'s catalog entry for {@code contentHash}, or null. */
+    public SharedFile peerFile(String peerId, String contentHash) {
+        Map<String, SharedFile> catalog = catalogsByPeerId.get(peerId);
+        return catalog == null ? null : catalog.get(contentHash);
     }
 
     public void setLocalCatalog(Collection<SharedFile> files) {
@@ -80,6 +223,8 @@ public class PeerRegistry {
                     return av;
                 });
                 v.sources.add(peer);
+                if (f.partial) v.partialSources.add(peer.peerId);
+                if (v.chunkListHash == null) v.chunkListHash = f.chunkListHash;
 
             
                 if (v.displayName.length() < name.length()) {
@@ -0,0 +1,148 @@
+package edu.yeditepe.cse471.p2p.network;
+
+import edu.yeditepe.cse471.p2p.model.SharedFile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This peer's advertised catalog: complete local files plus partial ones
+ * still downloading. Every change bumps {@link #version()} and is kept in a
+ * bounded change log, so a peer that already has version N can be sent just
+ * what changed since. The epoch is new for every instance, so versions from
+ * before a restart are never mistaken for current ones.
+ */
+public class VersionedCatalog {
+    private static final int MAX_CHANGES = 1024;
+
+    private record Change(long version, String contentHash) {}
+
+    /** Entries added or replaced and hashes removed between two versions. */
+    public record Delta(long fromVersion, long toVersion, List<SharedFile> added, List<String> removed) {}
+
+    /** Called under the catalog's lock whenever an entry is added, replaced or removed; must not call back in. */
+    public interface Listener {
+        void onEntryChanged(String contentHash);
+    }
+
+    private final String epoch = UUID.randomUUID().toString();
+    private final Map<String, SharedFile> files = new LinkedHashMap<>();
+    private final Deque<Change> changes = new ArrayDeque<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private long version;
+
+    public String epoch() {
+        return epoch;
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    public synchronized SharedFile get(String contentHash) {
+        return files.get(contentHash);
+    }
+
+    /** A complete local file for {@code contentHash}, or null; partial entries do not count. */
+    public synchronized SharedFile complete(String contentHash) {
+        SharedFile f = files.get(contentHash);
+        return f != null && !f.partial && f.localPath != null ? f : null;
+    }
+
+    /** Every entry, as a delta from version 0 so the version matches the entries. */
+    public synchronized Delta full() {
+        return new Delta(0, version, new ArrayList<>(files.values()), List.of());
+    }
+
+    /** Adds or replaces the entry for {@code f.contentHash}. */
+    public synchronized void put(SharedFile f) {
+        files.put(f.contentHash, f);
+        changed(f.contentHash);
+    }
+
+    public synchronized void remove(String contentHash) {
+        if (files.remove(contentHash) != null) changed(contentHash);
+    }
+
+    /** Removes the entry only if it is still {@code expected}, e.g. a partial one a complete file replaced. */
+    public synchronized void remove(String contentHash, SharedFile expected) {
+        if (files.get(contentHash) == expected) remove(contentHash);
+    }
+
+    /** Makes the complete files exactly {@code complete}, logging only real differences. Partial entries stay. */
+    public synchronized void replaceComplete(Collection<SharedFile> complete) {
+        Map<String, SharedFile> next = new HashMap<>();
+        for (SharedFile f : complete) next.put(f.contentHash, f);
+        for (SharedFile old : new ArrayList<>(files.values())) {
+            if (!old.partial && !next.containsKey(old.contentHash)) remove(old.contentHash);
+        }
+        for (SharedFile f : next.values()) {
+            SharedFile old = files.get(f.contentHash);
+            if (old == null || old.partial || !sameEntry(old, f)) {
+                put(f);
+            } else {
+                // Same content and names; keep the new local path without a version bump.
+                files.put(f.contentHash, f);
+                for (Listener l : listeners) l.onEntryChanged(f.contentHash);
+            }
+        }
+    }
+
+    /**
+     * What changed after {@code sinceVersion} of {@code sinceEpoch}, or null
+     * if that version is from another epoch or older than the change log,
+     * in which case the caller needs the full catalog.
+     */
+    public synchronized Delta since(String sinceEpoch, long sinceVersion) {
+        if (!epoch.equals(sinceEpoch) || sinceVersion > version) return null;
+        Change oldest = changes.peekFirst();
+        if (oldest != null && oldest.version() > sinceVersion + 1) return null;
+
+        Set<String> touched = new LinkedHashSet<>();
+        for (Change c : changes) {
+            if (c.version() > sinceVersion) touched.add(c.contentHash());
+        }
+        List<SharedFile> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String hash : touched) {
+            SharedFile f = files.get(hash);
+            if (f != null) {
+                added.add(f);
+            } else {
+                removed.add(hash);
+            }
+        }
+        return new Delta(sinceVersion, version, added, removed);
+    }
+
+    private void changed(String contentHash) {
+        version++;
+        changes.addLast(new Change(version, contentHash));
+        while (changes.size() > MAX_CHANGES) changes.removeFirst();
+        for (Listener l : listeners) l.onEntryChanged(contentHash);
+    }
+
+    private static boolean sameEntry(SharedFile a, SharedFile b) {
+        return a.sizeBytes == b.sizeBytes && a.numChunks == b.numChunks
+                && Objects.equals(a.names, b.names) && Objects.equals(a.chunkListHash, b.chunkListHash);
+    }
+}
@@ -0,0 +1,296 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which chunk(s) a download worker fetches next.
+ *
+ * <p>Chunks inside the urgency window (the next {@code urgentWindow} chunks
+ * from the playback cursor) are handed out first, one at a time, so they can
+ * be fetched with a tight timeout. Everything else is fetched
+ * opportunistically as ranges, rarest first (fewest known sources), then
+ * nearest after the cursor. Urgent chunks no known source has are passed
+ * over rather than handed out, so they cannot hold up the rest. With {@code fifo} set, the window is disabled and
+ * chunks go out strictly in index order, like the original session.
+ *
+ * <p>Once no more than {@code endgameThreshold} chunks are missing, the
+ * scheduler enters endgame: a chunk that is already being fetched is handed
+ * out again, up to {@code endgameCopies} concurrent fetches (and no more than
+ * the sources currently known to have it), so the session can race several
+ * peers for the last chunks.
+ *
+ * <p>Assignment decisions are made under this object's monitor; which chunks
+ * are received lives in a lock-free {@link ChunkStates}, so progress queries
+ * never wait on the scheduler.
+ */
+class ChunkScheduler {
+    record Assignment(int first, int count, boolean urgent, boolean endgame) {}
+
+    private record Retry(long at, int chunkIndex) {}
+
+    private static final long BASE_BACKOFF_MS = 200;
+    private static final long MAX_BACKOFF_MS = 10_000;
+    // Chunks past their attempt budget are parked this long between tries.
+    private static final long PARKED_BACKOFF_MS = 30_000;
+
+    private final int numChunks;
+    private final int urgentWindow;
+    private final int rangeChunks;
+    private final boolean fifo;
+    private final int endgameThreshold;
+    private final int endgameCopies;
+    private final int maxAttempts;
+
+    private final ChunkStates states;
+    // Concurrent fetches per chunk; more than one only during endgame.
+    private final int[] fetchers;
+    private final int[] attempts;
+    private final long[] retryAt;
+    // Backoff expiry times, earliest first, so idle workers wake exactly when a retry is due.
+    private final PriorityQueue<Retry> retries = new PriorityQueue<>(Comparator.comparingLong(Retry::at));
+    // Number of sources known to have each chunk; partial sources add theirs as they advertise it.
+    private final int[] availability;
+
+    private int cursor;
+    // First chunk an external reader (the local HTTP server) is blocked on, or -1.
+    private int demand = -1;
+
+    ChunkScheduler(int numChunks, int urgentWindow, int rangeChunks, int sources, boolean fifo,
+                   int endgameThreshold, int endgameCopies, int maxAttempts) {
+        this.numChunks = numChunks;
+        this.urgentWindow = fifo ? 0 : Math.max(0, urgentWindow);
+        this.rangeChunks = Math.max(1, rangeChunks);
+        this.fifo = fifo;
+        this.endgameThreshold = Math.max(0, endgameThreshold);
+        this.endgameCopies = Math.max(1, endgameCopies);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.states = new ChunkStates(numChunks);
+        this.fetchers = new int[numChunks];
+        this.attempts = new int[numChunks];
+        this.retryAt = new long[numChunks];
+        this.availability = new int[numChunks];
+        Arrays.fill(availability, sources);
+    }
+
+    /** Next work item, or null if every remaining chunk is in flight or backing off. */
+    synchronized Assignment next(long now) {
+        if (states.receivedCount() == numChunks) return null;
+
+        if (demand >= 0) {
+            int demandEnd = Math.min(numChunks, demand + Math.max(1, urgentWindow));
+            for (int i = demand; i < demandEnd; i++) {
+                if (isFree(i, now) && availability[i] > 0) {
+                    claim(i);
+                    return new Assignment(i, 1, true, false);
+                }
+            }
+        }
+
+        int windowEnd = Math.min(numChunks, cursor + urgentWindow);
+        for (int i = cursor; i < windowEnd; i++) {
+            if (isFree(i, now) && availability[i] > 0) {
+                claim(i);
+                return new Assignment(i, 1, true, false);
+            }
+        }
+
+        int first = fifo ? firstFree(0, numChunks, now) : pickOpportunistic(windowEnd, now);
+        if (first < 0) return inEndgame() ? nextDuplicate(now) : null;
+
+        int count = 1;
+        while (count < rangeChunks && first + count < numChunks && isFree(first + count, now)
+                && availability[first + count] == availability[first]) {
+            count++;
+        }
+        for (int i = first; i < first + count; i++) claim(i);
+        return new Assignment(first, count, false, false);
+    }
+
+    synchronized boolean inEndgame() {
+        return numChunks - states.receivedCount() <= endgameThreshold;
+    }
+
+    private Assignment nextDuplicate(long now) {
+        // Fewest concurrent fetches first, then nearest after the cursor.
+        int best = -1;
+        for (int n = 0; n < numChunks; n++) {
+            int i = (cursor + n) % numChunks;
+            if (states.isReceived(i) || retryAt[i] > now || fetchers[i] >= copiesFor(i)) continue;
+            if (best < 0 || fetchers[i] < fetchers[best]) best = i;
+        }
+        if (best < 0) return null;
+        claim(best);
+        return new Assignment(best, 1, false, true);
+    }
+
+    private int pickOpportunistic(int from, long now) {
+        // Rarest first, chunks no known source has last; ties go to the chunk
+        // nearest after the cursor (wrapping to the start).
+        int best = -1;
+        for (int n = 0; n < numChunks; n++) {
+            int i = (from + n) % numChunks;
+            if (isFree(i, now) && (best < 0 || rank(i) < rank(best))) best = i;
+        }
+        return best;
+    }
+
+    // No more copies than sources currently known to have the chunk; sources come and go.
+    private int copiesFor(int chunkIndex) {
+        return Math.min(endgameCopies, Math.max(1, availability[chunkIndex]));
+    }
+
+    private int rank(int chunkIndex) {
+        int a = availability[chunkIndex];
+        return a > 0 ? a : Integer.MAX_VALUE;
+    }
+
+    /** Adds {@code delta} known sources for each chunk in {@code chunks}. */
+    synchronized void addAvailability(BitSet chunks, int delta) {
+        for (int i = chunks.nextSetBit(0); i >= 0 && i < numChunks; i = chunks.nextSetBit(i + 1)) {
+            availability[i] += delta;
+        }
+    }
+
+    private int firstFree(int from, int to, long now) {
+        for (int i = from; i < to; i++) {
+            if (isFree(i, now)) return i;
+        }
+        return -1;
+    }
+
+    private boolean isFree(int i, long now) {
+        return fetchers[i] == 0 && !states.isReceived(i) && retryAt[i] <= now;
+    }
+
+    /** Marks a chunk received ({@code verified} if it matched its chunk hash); returns false if it already was. */
+    boolean markReceived(int chunkIndex, boolean verified) {
+        boolean fresh = states.markReceived(chunkIndex, verified);
+        synchronized (this) {
+            release(chunkIndex);
+            notifyAll();
+        }
+        return fresh;
+    }
+
+    /**
+     * Puts a chunk back in the missing set after a failed fetch, eligible again
+     * after a jittered exponential backoff. Returns false once the chunk has
+     * used up its attempt budget; from then on it is parked for
+     * {@code PARKED_BACKOFF_MS} between tries while other chunks go ahead.
+     * With {@code charge} false the chunk backs off without using an attempt,
+     * e.g. when it only failed alongside another chunk of the same range.
+     */
+    synchronized boolean markFailed(int chunkIndex, long now, boolean charge) {
+        release(chunkIndex);
+        if (states.isReceived(chunkIndex) || fetchers[chunkIndex] > 0) return true;
+        int attempt = charge ? ++attempts[chunkIndex] : Math.max(1, attempts[chunkIndex]);
+        long backoff = attempt >= maxAttempts ? PARKED_BACKOFF_MS
+                : Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(20, attempt - 1));
+        // Equal jitter: half fixed, half random, so chunks that failed together spread out.
+        long at = now + backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        retryAt[chunkIndex] = at;
+        retries.add(new Retry(at, chunkIndex));
+        notifyAll();
+        return attempt < maxAttempts;
+    }
+
+    /** Hands an assignment back untouched, e.g. when no peer had a free slot. */
+    synchronized void unassign(Assignment a) {
+        for (int i = a.first(); i < a.first() + a.count(); i++) release(i);
+        notifyAll();
+    }
+
+    private void claim(int chunkIndex) {
+        if (fetchers[chunkIndex]++ == 0) states.markInFlight(chunkIndex, true);
+    }
+
+    private void release(int chunkIndex) {
+        if (fetchers[chunkIndex] > 0 && --fetchers[chunkIndex] == 0) states.markInFlight(chunkIndex, false);
+    }
+
+    /** Marks chunks already on disk from an earlier session; call before handing out work. */
+    synchronized void restore(BitSet chunks, boolean verified) {
+        for (int i = chunks.nextSetBit(0); i >= 0 && i < numChunks; i = chunks.nextSetBit(i + 1)) {
+            states.markReceived(i, verified);
+        }
+        notifyAll();
+    }
+
+    BitSet receivedSnapshot() {
+        return states.receivedSnapshot();
+    }
+
+    synchronized int attempts(int chunkIndex) {
+        return attempts[chunkIndex];
+    }
+
+    boolean isReceived(int chunkIndex) {
+        return states.isReceived(chunkIndex);
+    }
+
+    int receivedCount() {
+        return states.receivedCount();
+    }
+
+    int contiguousFrom(int start) {
+        return states.contiguousFrom(start);
+    }
+
+    /** Returns true if the cursor moved. */
+    synchronized boolean setCursor(int chunkIndex) {
+        int c = Math.max(0, Math.min(numChunks, chunkIndex));
+        if (c == cursor) return false;
+        cursor = c;
+        notifyAll();
+        return true;
+    }
+
+    synchronized int cursor() {
+        return cursor;
+    }
+
+    /**
+     * True if {@code chunkIndex} is missing and lies behind the cursor or more
+     * than the urgency window past the buffered run from it, i.e. a reader
+     * asking for it has jumped rather than caught up with the download.
+     */
+    synchronized boolean isFarFromCursor(int chunkIndex) {
+        if (chunkIndex < 0 || chunkIndex >= numChunks || states.isReceived(chunkIndex)) return false;
+        if (chunkIndex < cursor) return true;
+        return chunkIndex > cursor + states.contiguousFrom(cursor) + urgentWindow;
+    }
+
+    /** Fetches {@code chunkIndex} and the urgency window after it before anything else. */
+    synchronized boolean demand(int chunkIndex) {
+        int d = Math.max(0, Math.min(numChunks - 1, chunkIndex));
+        if (d == demand) return false;
+        demand = d;
+        notifyAll();
+        return true;
+    }
+
+    /** Waits until {@code chunkIndex} is received; false if the timeout elapsed first. */
+    synchronized boolean awaitReceived(int chunkIndex, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!states.isReceived(chunkIndex)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Milliseconds until the next backoff expires, or {@link Long#MAX_VALUE} if
+     * none is pending. Expired entries are dropped, so an idle worker that just
+     * found nothing to do does not spin on a retry it cannot place yet.
+     */
+    synchronized long nextRetryDelay(long now) {
+        while (!retries.isEmpty() && retries.peek().at() <= now) retries.poll();
+        return retries.isEmpty() ? Long.MAX_VALUE : retries.peek().at() - now;
+    }
+}
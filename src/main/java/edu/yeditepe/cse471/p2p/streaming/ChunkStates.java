@@ -0,0 +1,105 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free per-chunk state for one stream: two bits per chunk packed into an
+ * {@link AtomicLongArray}, a received counter and a contiguous-prefix
+ * watermark. Updates are single CAS operations and the watermark only moves
+ * forward, so completions are O(1) amortized and readers (monitor, UI) never
+ * block the download workers.
+ */
+class ChunkStates {
+    static final int MISSING = 0;
+    static final int IN_FLIGHT = 1;
+    static final int RECEIVED = 2;   // written, not checked against a chunk hash
+    static final int VERIFIED = 3;   // written and matched the catalog's chunk hash
+
+    private static final int PER_WORD = 32;
+
+    private final int numChunks;
+    private final AtomicLongArray words;
+    private final AtomicInteger receivedCount = new AtomicInteger();
+    // Every chunk below this index is received.
+    private final AtomicInteger watermark = new AtomicInteger();
+
+    ChunkStates(int numChunks) {
+        this.numChunks = numChunks;
+        this.words = new AtomicLongArray((numChunks + PER_WORD - 1) / PER_WORD);
+    }
+
+    int state(int chunkIndex) {
+        return (int) (words.get(chunkIndex / PER_WORD) >>> shift(chunkIndex)) & 3;
+    }
+
+    boolean isReceived(int chunkIndex) {
+        return state(chunkIndex) >= RECEIVED;
+    }
+
+    /** Moves a chunk to RECEIVED or VERIFIED; returns false if it already was received. */
+    boolean markReceived(int chunkIndex, boolean verified) {
+        int prev = transition(chunkIndex, verified ? VERIFIED : RECEIVED);
+        if (prev >= RECEIVED) return false;
+        receivedCount.incrementAndGet();
+        advanceWatermark();
+        return true;
+    }
+
+    /** MISSING/IN_FLIGHT bookkeeping; ignored once the chunk is received. */
+    void markInFlight(int chunkIndex, boolean inFlight) {
+        transition(chunkIndex, inFlight ? IN_FLIGHT : MISSING);
+    }
+
+    int receivedCount() {
+        return receivedCount.get();
+    }
+
+    int watermark() {
+        return watermark.get();
+    }
+
+    /** Number of received chunks in a row starting at {@code start}. */
+    int contiguousFrom(int start) {
+        int w = watermark.get();
+        int i = Math.max(0, start);
+        if (i < w) return w - i;
+        while (i < numChunks && isReceived(i)) i++;
+        return i - start;
+    }
+
+    BitSet receivedSnapshot() {
+        BitSet set = new BitSet(numChunks);
+        for (int i = 0; i < numChunks; i++) {
+            if (isReceived(i)) set.set(i);
+        }
+        return set;
+    }
+
+    private int transition(int chunkIndex, int to) {
+        int idx = chunkIndex / PER_WORD;
+        int shift = shift(chunkIndex);
+        while (true) {
+            long word = words.get(idx);
+            int prev = (int) (word >>> shift) & 3;
+            if (prev >= RECEIVED) return prev;
+            long next = (word & ~(3L << shift)) | ((long) to << shift);
+            if (words.compareAndSet(idx, word, next)) return prev;
+        }
+    }
+
+    private void advanceWatermark() {
+        // Whoever sets the chunk at the watermark carries it past every chunk
+        // received ahead of it, so the prefix is never missed.
+        while (true) {
+            int w = watermark.get();
+            if (w >= numChunks || !isReceived(w)) return;
+            watermark.compareAndSet(w, w + 1);
+        }
+    }
+
+    private static int shift(int chunkIndex) {
+        return (chunkIndex % PER_WORD) * 2;
+    }
+}
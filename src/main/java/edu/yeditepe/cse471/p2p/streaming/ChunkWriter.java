@@ -0,0 +1,90 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The session's single handle on its buffer file. Chunks are written with
+ * positional writes on one shared {@link FileChannel}, safe from any number
+ * of worker threads, or copied into memory-mapped segments of the file in
+ * {@code mmap} mode. Nothing is forced to disk until {@link #force()}, which
+ * the session calls in batches.
+ */
+class ChunkWriter implements Closeable {
+    // Mapped segments are a whole number of chunks, so no chunk spans two.
+    private static final int SEGMENT_BYTES = 256 * Chunker.CHUNK_SIZE;
+
+    private final FileChannel channel;
+    private final long sizeBytes;
+    private final MappedByteBuffer[] segments;
+
+    ChunkWriter(Path file, long sizeBytes, boolean mmap) throws IOException {
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.sizeBytes = sizeBytes;
+        try {
+            if (channel.size() > sizeBytes) channel.truncate(sizeBytes);
+            if (channel.size() < sizeBytes && sizeBytes > 0) channel.write(ByteBuffer.allocate(1), sizeBytes - 1);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.segments = mmap ? new MappedByteBuffer[(int) ((sizeBytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES)] : null;
+    }
+
+    void write(int chunkIndex, byte[] data) throws IOException {
+        long offset = Chunker.chunkOffset(chunkIndex);
+        if (offset + data.length > sizeBytes) throw new IOException("Chunk " + chunkIndex + " past end of file");
+        if (segments != null) {
+            ByteBuffer dst = segment(offset).duplicate();
+            dst.position((int) (offset % SEGMENT_BYTES));
+            dst.put(data);
+            return;
+        }
+        ByteBuffer src = ByteBuffer.wrap(data);
+        long pos = offset;
+        while (src.hasRemaining()) pos += channel.write(src, pos);
+    }
+
+    /** Reads {@code len} bytes of chunk {@code chunkIndex} into {@code buf}. */
+    void read(int chunkIndex, byte[] buf, int len) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, len);
+        long pos = Chunker.chunkOffset(chunkIndex);
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0) throw new IOException("Unexpected end of buffer file");
+            pos += n;
+        }
+    }
+
+    /** Flushes everything written so far to the storage device. */
+    void force() throws IOException {
+        if (segments != null) {
+            synchronized (segments) {
+                for (MappedByteBuffer s : segments) if (s != null) s.force();
+            }
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private MappedByteBuffer segment(long offset) throws IOException {
+        int i = (int) (offset / SEGMENT_BYTES);
+        synchronized (segments) {
+            if (segments[i] == null) {
+                long start = (long) i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_BYTES, sizeBytes - start));
+            }
+            return segments[i];
+        }
+    }
+}
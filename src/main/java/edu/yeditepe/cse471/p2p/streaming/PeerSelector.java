@@ -0,0 +1,197 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import edu.yeditepe.cse471.p2p.model.Peer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Picks the source for each request from per-peer estimates kept for the
+ * session: EWMA throughput, EWMA request latency and EWMA failure rate.
+ *
+ * <p>A request goes to the peer with the earliest expected finish time given
+ * the work it already has in flight, which hands out chunks roughly in
+ * proportion to measured capacity. Each peer also has its own in-flight limit
+ * that shrinks while it keeps failing.
+ *
+ * <p>A peer that fails {@code breakerFailures} requests in a row is
+ * quarantined: it gets no requests for a cooldown, then a single probe. A
+ * successful probe restores it; a failed one quarantines it again for twice
+ * as long. Quarantine only steers requests to other sources: when all of
+ * them are quarantined and no new ones can join, requests go out anyway and
+ * the scheduler's backoff and attempt budget decide. Sources can be added and
+ * retired while the session runs.
+ */
+class PeerSelector {
+    private static final double ALPHA = 0.3;
+    // Optimistic guess for peers we have not measured yet, so they get probed.
+    private static final double INITIAL_BYTES_PER_SEC = 4.0 * 1024 * 1024;
+    private static final double INITIAL_LATENCY_MS = 50;
+    private static final long MAX_COOLDOWN_MS = 60_000;
+
+    private final Map<String, PeerStats> stats = new LinkedHashMap<>();
+    private final int maxInFlightPerPeer;
+    private final int breakerFailures;
+    private final long breakerCooldownMs;
+    private boolean awaitNewSources;
+
+    PeerSelector(List<Peer> sources, int maxInFlightPerPeer, int breakerFailures, long breakerCooldownMs) {
+        this.maxInFlightPerPeer = Math.max(1, maxInFlightPerPeer);
+        this.breakerFailures = Math.max(1, breakerFailures);
+        this.breakerCooldownMs = Math.max(1, breakerCooldownMs);
+        for (Peer p : sources) stats.put(p.peerId, new PeerStats(p));
+    }
+
+    /** Adds a source, or brings back a retired one with fresh estimates. */
+    synchronized void add(Peer peer) {
+        PeerStats s = stats.get(peer.peerId);
+        if (s != null && !s.retired) return;
+        PeerStats fresh = new PeerStats(peer);
+        // Requests still in flight from before it left keep their slots.
+        if (s != null) fresh.inFlight = s.inFlight;
+        stats.put(peer.peerId, fresh);
+        notifyAll();
+    }
+
+    /** Whether new sources may still join, which makes it worth waiting out a full quarantine. */
+    synchronized void setAwaitNewSources(boolean await) {
+        this.awaitNewSources = await;
+    }
+
+    /** Stops choosing {@code peerId}; requests already sent to it finish normally. */
+    synchronized void retire(String peerId) {
+        PeerStats s = stats.get(peerId);
+        if (s != null) s.retired = true;
+    }
+
+    /**
+     * Reserves an in-flight slot on the best peer for a request of
+     * {@code bytes}, skipping {@code exclude}. {@code admit} gets the final
+     * say (and reserves the peer's process-wide slot); a refused peer is
+     * passed over for the next best. Returns null if no peer is available.
+     */
+    synchronized Peer acquire(long bytes, Set<String> exclude, Predicate<String> admit) {
+        long now = System.currentTimeMillis();
+        boolean honourQuarantine = awaitNewSources || anyUsable(now);
+        List<PeerStats> candidates = new ArrayList<>(stats.size());
+        for (PeerStats s : stats.values()) {
+            if (s.inFlight < s.limit(now, honourQuarantine) && !exclude.contains(s.peer.peerId)) candidates.add(s);
+        }
+        candidates.sort(Comparator.comparingDouble(s -> s.expectedFinishMs(bytes)));
+        for (PeerStats s : candidates) {
+            if (!admit.test(s.peer.peerId)) continue;
+            s.inFlight++;
+            return s.peer;
+        }
+        return null;
+    }
+
+    /** Whether {@code peerId} is a current source outside quarantine. */
+    synchronized boolean isUsable(String peerId) {
+        PeerStats s = stats.get(peerId);
+        return s != null && !s.retired && System.currentTimeMillis() >= s.quarantinedUntil;
+    }
+
+    private boolean anyUsable(long now) {
+        for (PeerStats s : stats.values()) {
+            if (!s.retired && now >= s.quarantinedUntil) return true;
+        }
+        return false;
+    }
+
+    /** Records a completed request and frees its slot. */
+    synchronized void onSuccess(Peer peer, long bytes, long elapsedMs, int chunks) {
+        PeerStats s = stats.get(peer.peerId);
+        if (s == null) return;
+        // Requests to one peer overlap, so scale by the concurrency they shared the link with.
+        int concurrency = Math.max(1, s.inFlight);
+        s.inFlight--;
+        double rate = bytes * 1000.0 * concurrency / Math.max(1, elapsedMs);
+        s.bytesPerSec = s.measured ? ewma(s.bytesPerSec, rate) : rate;
+        s.latencyMs = s.measured ? ewma(s.latencyMs, elapsedMs / (double) Math.max(1, chunks)) : elapsedMs;
+        s.failureRate = ewma(s.failureRate, 0);
+        s.consecutiveFailures = 0;
+        s.quarantinedUntil = 0;
+        s.cooldownMs = 0;
+        s.measured = true;
+        s.totalBytes += bytes;
+        notifyAll();
+    }
+
+    /** Frees the slot of a request we abandoned ourselves; not held against the peer. */
+    synchronized void onCancelled(Peer peer) {
+        PeerStats s = stats.get(peer.peerId);
+        if (s == null) return;
+        s.inFlight--;
+        notifyAll();
+    }
+
+    /** Records a failed request; returns the quarantine period if this put the peer in quarantine, else 0. */
+    synchronized long onFailure(Peer peer) {
+        PeerStats s = stats.get(peer.peerId);
+        if (s == null) return 0;
+        s.inFlight--;
+        s.failureRate = ewma(s.failureRate, 1);
+        s.consecutiveFailures++;
+        notifyAll();
+        long now = System.currentTimeMillis();
+        // Failures of requests sent before the quarantine began do not extend it.
+        if (s.quarantinedUntil > now) return 0;
+        boolean probeFailed = s.cooldownMs > 0;
+        if (!probeFailed && s.consecutiveFailures < breakerFailures) return 0;
+        s.cooldownMs = probeFailed ? Math.min(MAX_COOLDOWN_MS, s.cooldownMs * 2) : breakerCooldownMs;
+        s.quarantinedUntil = now + s.cooldownMs;
+        return s.cooldownMs;
+    }
+
+    synchronized List<Snapshot> snapshot() {
+        List<Snapshot> res = new ArrayList<>(stats.size());
+        for (PeerStats s : stats.values()) {
+            if (s.retired) continue;
+            res.add(new Snapshot(s.peer, s.measured ? s.bytesPerSec : 0, s.latencyMs, s.failureRate, s.inFlight, s.totalBytes));
+        }
+        return res;
+    }
+
+    record Snapshot(Peer peer, double bytesPerSec, double latencyMs, double failureRate, int inFlight, long totalBytes) {}
+
+    private static double ewma(double old, double sample) {
+        return old + ALPHA * (sample - old);
+    }
+
+    private final class PeerStats {
+        final Peer peer;
+        double bytesPerSec = INITIAL_BYTES_PER_SEC;
+        double latencyMs = INITIAL_LATENCY_MS;
+        double failureRate;
+        boolean measured;
+        int inFlight;
+        long totalBytes;
+        boolean retired;
+        int consecutiveFailures;
+        // Circuit breaker: no requests before this time; cooldownMs > 0 until a request succeeds again.
+        long quarantinedUntil;
+        long cooldownMs;
+
+        PeerStats(Peer peer) {
+            this.peer = peer;
+        }
+
+        int limit(long now, boolean honourQuarantine) {
+            if (retired || (honourQuarantine && now < quarantinedUntil)) return 0;
+            // A mostly failing or just-released peer keeps one probe in flight; a healthy one gets the full limit.
+            if (failureRate > 0.5 || cooldownMs > 0) return 1;
+            return maxInFlightPerPeer;
+        }
+
+        double expectedFinishMs(long bytes) {
+            double effective = Math.max(1, bytesPerSec * (1 - failureRate));
+            return latencyMs + (inFlight + 1) * bytes * 1000.0 / effective;
+        }
+    }
+}
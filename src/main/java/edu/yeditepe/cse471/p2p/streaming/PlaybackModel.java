@@ -0,0 +1,67 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Simulated player clock. Once playback starts it consumes one chunk every
+ * {@code chunkPlayMs} (derived from an assumed bitrate); when the chunk under
+ * the cursor has not arrived the clock pauses and a rebuffer is recorded.
+ * Gives the scheduler a playback position and the session its stall metrics.
+ */
+class PlaybackModel {
+    private final int numChunks;
+    private final long chunkPlayMs;
+    private final StreamMetrics metrics;
+
+    private boolean playing;
+    private long lastTick;
+    private long playedMs;
+    private long stalledSince = -1;
+
+    PlaybackModel(int numChunks, int assumedBitrateKbps, StreamMetrics metrics) {
+        this.numChunks = numChunks;
+        long bytesPerSec = Math.max(1, assumedBitrateKbps) * 1000L / 8;
+        this.chunkPlayMs = Math.max(1, Chunker.CHUNK_SIZE * 1000L / bytesPerSec);
+        this.metrics = metrics;
+    }
+
+    synchronized void start(long now) {
+        if (playing) return;
+        playing = true;
+        lastTick = now;
+    }
+
+    synchronized void tick(long now, IntPredicate received) {
+        if (!playing) return;
+
+        if (stalledSince >= 0) {
+            if (!received.test(cursor())) return;
+            metrics.stalledMs.addAndGet(now - stalledSince);
+            stalledSince = -1;
+            lastTick = now;
+            return;
+        }
+
+        playedMs += now - lastTick;
+        lastTick = now;
+        int c = cursor();
+        if (c < numChunks && !received.test(c)) {
+            stalledSince = now;
+            metrics.rebufferEvents.incrementAndGet();
+        }
+    }
+
+    /** Jumps the clock to the start of {@code chunkIndex}; an ongoing stall ends here. */
+    synchronized void seek(int chunkIndex, long now) {
+        if (stalledSince >= 0) {
+            metrics.stalledMs.addAndGet(now - stalledSince);
+            stalledSince = -1;
+        }
+        playedMs = Math.max(0, Math.min(numChunks, chunkIndex)) * chunkPlayMs;
+        lastTick = now;
+    }
+
+    synchronized int cursor() {
+        return (int) Math.min(numChunks, playedMs / chunkPlayMs);
+    }
+}
@@ -0,0 +1,93 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+/**
+ * Sidecar next to a {@code .buffer} file recording which chunks it already
+ * holds, so an interrupted stream can resume instead of starting over.
+ *
+ * <pre>
+ * "P2PR" | u8 version | utf contentHash | i64 fileSizeBytes | i32 numChunks | i32 len | bitmap bytes
+ * </pre>
+ * The caller forces the buffer file to disk before each save and the sidecar
+ * is replaced atomically, so a chunk listed here was fully written even if the
+ * process or machine died right after.
+ */
+class ResumeState {
+    private static final int MAGIC = 0x50325052; // "P2PR"
+    private static final int VERSION = 1;
+
+    private final Path path;
+    private final String contentHash;
+    private final long fileSizeBytes;
+    private final int numChunks;
+
+    ResumeState(Path bufferFile, String contentHash, long fileSizeBytes, int numChunks) {
+        this.path = bufferFile.resolveSibling(bufferFile.getFileName() + ".state");
+        this.contentHash = contentHash;
+        this.fileSizeBytes = fileSizeBytes;
+        this.numChunks = numChunks;
+    }
+
+    /** Chunks recorded by an earlier session for the same content, or an empty set. */
+    BitSet load() throws IOException {
+        byte[] raw;
+        try {
+            raw = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return new BitSet();
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) return new BitSet();
+            if (!contentHash.equals(in.readUTF())) return new BitSet();
+            if (in.readLong() != fileSizeBytes || in.readInt() != numChunks) return new BitSet();
+            int len = in.readInt();
+            if (len < 0 || len > in.available()) return new BitSet();
+            byte[] bits = new byte[len];
+            in.readFully(bits);
+            BitSet set = BitSet.valueOf(bits);
+            if (set.length() > numChunks) return new BitSet();
+            return set;
+        } catch (IOException e) {
+            // Truncated or foreign file: treat as no progress.
+            return new BitSet();
+        }
+    }
+
+    /** Atomically replaces the sidecar with {@code received}. */
+    void save(BitSet received) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + numChunks / 8);
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(contentHash);
+            out.writeLong(fileSizeBytes);
+            out.writeInt(numChunks);
+            byte[] bits = received.toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, bos.toByteArray());
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
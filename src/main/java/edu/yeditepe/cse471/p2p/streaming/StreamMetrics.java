@@ -0,0 +1,56 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Playback-quality counters for one {@link StreamSession}, so scheduler
+ * variants can be compared on the same swarm.
+ */
+public class StreamMetrics {
+    final AtomicLong startedAtMs = new AtomicLong();
+    final AtomicLong readyAfterMs = new AtomicLong(-1);
+    final AtomicInteger rebufferEvents = new AtomicInteger();
+    final AtomicLong stalledMs = new AtomicLong();
+    final AtomicInteger urgentRequests = new AtomicInteger();
+    final AtomicInteger urgentFailures = new AtomicInteger();
+    final AtomicInteger endgameRequests = new AtomicInteger();
+    final AtomicInteger cancelledRequests = new AtomicInteger();
+    final AtomicLong duplicateBytes = new AtomicLong();
+    final AtomicInteger corruptChunks = new AtomicInteger();
+    final AtomicLong firstServedAfterMs = new AtomicLong(-1);
+
+    /** Time from start() until the play threshold was met, or -1. */
+    public long readyAfterMs() { return readyAfterMs.get(); }
+
+    /** Times the simulated player ran into a missing chunk after playback began. */
+    public int rebufferEvents() { return rebufferEvents.get(); }
+
+    public long stalledMs() { return stalledMs.get(); }
+
+    public int urgentRequests() { return urgentRequests.get(); }
+
+    public int urgentFailures() { return urgentFailures.get(); }
+
+    public int endgameRequests() { return endgameRequests.get(); }
+
+    public int cancelledRequests() { return cancelledRequests.get(); }
+
+    /** Chunk bytes received for chunks we already had, i.e. the cost of endgame racing. */
+    public long duplicateBytes() { return duplicateBytes.get(); }
+
+    /** Chunks that failed verification against the catalog's chunk hashes and were re-fetched. */
+    public int corruptChunks() { return corruptChunks.get(); }
+
+    /** Time from start() until a local player was first handed data, or -1 if none asked. */
+    public long firstServedAfterMs() { return firstServedAfterMs.get(); }
+
+    @Override
+    public String toString() {
+        return "ready=" + readyAfterMs() + "ms rebuffers=" + rebufferEvents()
+                + " stalled=" + stalledMs() + "ms urgent=" + urgentRequests()
+                + " urgentFailed=" + urgentFailures() + " endgame=" + endgameRequests()
+                + " cancelled=" + cancelledRequests() + " duplicateBytes=" + duplicateBytes()
+                + " corrupt=" + corruptChunks() + " firstServed=" + firstServedAfterMs() + "ms";
+    }
+}
@@ -1,66 +1,255 @@
 package edu.yeditepe.cse471.p2p.streaming;
 
 import edu.yeditepe.cse471.p2p.model.Peer;
+import edu.yeditepe.cse471.p2p.model.SharedFile;
 import edu.yeditepe.cse471.p2p.network.ControlClient;
+import edu.yeditepe.cse471.p2p.network.ControlServer;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.ChunkResponseHeader;
+import edu.yeditepe.cse471.p2p.network.ControlMessages.HaveResponse;
+import edu.yeditepe.cse471.p2p.network.LocalStreamServer;
+import edu.yeditepe.cse471.p2p.network.PartialSource;
+import edu.yeditepe.cse471.p2p.network.PeerRegistry;
+import edu.yeditepe.cse471.p2p.util.AppConfig;
+import edu.yeditepe.cse471.p2p.util.HashUtil;
+import edu.yeditepe.cse471.p2p.util.Threads;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.*;
-import java.util.concurrent.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-
-public class StreamSession {
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Downloads one file from its sources into a buffer file while it plays.
+ * Until it completes, the session is also a {@link PartialSource} that other
+ * peers can fetch the chunks it already has from.
+ */
+public class StreamSession implements PartialSource {
     public interface Listener {
         void onLog(String msg);
         void onPeerUpdate(Peer peer, int chunkIndex, double progress01, String status);
+        /** {@code contiguousChunks} counts buffered chunks in a row from the playback cursor. */
         void onGlobalBuffer(double progress01, int contiguousChunks);
+        void onPeerRate(Peer peer, double bytesPerSec, double latencyMs, int inFlight);
         void onReadyToPlay(Path localFile);
         void onCompleted(Path localFile);
     }
 
     private final String contentHash;
     private final String displayName;
-    private final List<Peer> sources;
+    // Current sources by peer id; grows and shrinks with the registry once followRegistry is called.
+    private final Map<String, Peer> sources = new ConcurrentHashMap<>();
     private final long fileSizeBytes;
     private final int numChunks;
+    // Hash over the chunk hash list from the catalog, or null if the sources did not publish one.
+    private final String chunkListHash;
+    // Expected SHA-256 per chunk, fetched from a source at start and checked against chunkListHash.
+    private volatile List<String> chunkHashes;
+    // SHA-256 of the file so far, fed chunk by chunk as the contiguous prefix grows; checked
+    // against contentHash at the end, which is what ties the chunk hashes to the content.
+    private final MessageDigest contentDigest = HashUtil.sha256();
+    private final ReentrantLock digestLock = new ReentrantLock();
+    private int digestedChunks;
+    private byte[] digestBuf;
+    private String contentDigestHex;
     private final Path outputFile;
     private final Listener listener;
 
-    private final ControlClient client = new ControlClient();
-    private final ExecutorService pool;
-    private final AtomicInteger downloadedChunks = new AtomicInteger(0);
-    private final BitSet received;
-    private final int[] attempts;
+    private final TransferManager transfers;
+    private final ControlClient client;
+    private volatile TransferManager.Priority priority = TransferManager.Priority.FOREGROUND;
+    private long discardedAtStart;
+    private final ChunkScheduler scheduler;
+    private final StreamMetrics metrics = new StreamMetrics();
+    private final PlaybackModel playback;
+    private final PeerSelector selector;
+    private final ResumeState resume;
+    private volatile ChunkWriter writer;
+    private final int resumeFlushMs = AppConfig.resumeFlushMs();
+    private int savedCount = -1;
+    // Single-chunk requests in flight per chunk, so an endgame winner can cancel the rest.
+    private final ConcurrentHashMap<Integer, Set<Racer>> racers = new ConcurrentHashMap<>();
+    // Peers that failed a chunk (error, timeout or bad hash); its retries go elsewhere.
+    private final ConcurrentHashMap<Integer, Set<String>> failedFrom = new ConcurrentHashMap<>();
+    // Sources that are still downloading too, with the chunks they advertised so far.
+    private final ConcurrentHashMap<String, PeerHave> partialPeers = new ConcurrentHashMap<>();
+    private final AtomicBoolean pollingHaves = new AtomicBoolean(false);
+    private volatile PeerRegistry registry;
+    // Serves what we have to other peers until the session stops.
+    private volatile ControlServer partialServer;
+    private volatile LocalStreamServer httpServer;
+    private final PeerRegistry.Listener registryListener = new PeerRegistry.Listener() {
+        @Override
+        public void onPeerCatalog(Peer peer, Map<String, SharedFile> catalogByHash) {
+            SharedFile f = catalogByHash.get(contentHash);
+            if (f != null) {
+                addSource(peer, f.partial);
+            } else {
+                removeSource(peer.peerId);
+            }
+        }
+
+        @Override
+        public void onPeerRemoved(Peer peer) {
+            removeSource(peer.peerId);
+        }
+    };
+    private final int havePollMs = AppConfig.havePollMs();
+
+    // What we serve to others as a partial source: chunks in arrival order (see haveSince).
+    private final SharedFile sharedFile;
+    private final int[] haveLog;
+    private int haveCount;
 
     private final AtomicBoolean startedPlayback = new AtomicBoolean(false);
+    private final AtomicBoolean completed = new AtomicBoolean(false);
     private final AtomicBoolean stopped = new AtomicBoolean(false);
 
-    // Buffer/playback rule: start when we have N contiguous chunks from start.
+    // Buffer/playback rule: start when we have N contiguous chunks from the cursor.
     private final int playThresholdChunks;
+    private final int urgentTimeoutMs = AppConfig.urgentTimeoutMs();
 
     public StreamSession(String contentHash,
                          String displayName,
                          List<Peer> sources,
                          long fileSizeBytes,
                          int numChunks,
+                         String chunkListHash,
                          Path outputFile,
                          int playThresholdChunks,
-                         Listener listener) {
+                         Listener listener,
+                         TransferManager transfers) {
         this.contentHash = contentHash;
         this.displayName = displayName;
-        this.sources = List.copyOf(sources);
+        for (Peer p : sources) this.sources.put(p.peerId, p);
         this.fileSizeBytes = fileSizeBytes;
         this.numChunks = numChunks;
+        this.chunkListHash = chunkListHash;
         this.outputFile = outputFile;
         this.playThresholdChunks = Math.max(1, playThresholdChunks);
         this.listener = listener;
+        this.transfers = transfers;
+        this.client = transfers.client();
+        this.scheduler = new ChunkScheduler(numChunks,
+                Math.max(this.playThresholdChunks, AppConfig.urgentWindowChunks()),
+                AppConfig.rangeChunks(), sources.size(),
+                "fifo".equalsIgnoreCase(AppConfig.chunkScheduler()),
+                AppConfig.endgameThreshold(), AppConfig.endgameCopies(), AppConfig.chunkMaxAttempts());
+        this.playback = new PlaybackModel(numChunks, AppConfig.assumedBitrateKbps(), metrics);
+        this.selector = new PeerSelector(sources, AppConfig.peerMaxInFlight(),
+                AppConfig.breakerFailures(), AppConfig.breakerCooldownMs());
+        this.resume = new ResumeState(outputFile, contentHash, fileSizeBytes, numChunks);
+        this.sharedFile = new SharedFile(contentHash, fileSizeBytes, outputFile, displayName);
+        this.sharedFile.numChunks = numChunks;
+        this.sharedFile.chunkListHash = chunkListHash;
+        this.sharedFile.partial = true;
+        this.haveLog = new int[numChunks];
+    }
+
+    /**
+     * Marks sources that only have part of the file. They get no requests
+     * until their HAVE_RESPONSE lists chunks, and then only for those. Call
+     * before {@link #start()}.
+     */
+    public void setPartialSources(Collection<String> peerIds) {
+        BitSet all = allChunks();
+        for (Peer p : sources.values()) {
+            if (peerIds.contains(p.peerId) && partialPeers.putIfAbsent(p.peerId, new PeerHave(p)) == null) {
+                scheduler.addAvailability(all, -1);
+            }
+        }
+    }
+
+    /**
+     * Keeps the sources in step with {@code registry} while the session runs:
+     * peers whose catalog lists this file are added, peers that drop it or
+     * leave are retired. Also picks up peers already in the registry that were
+     * not passed to the constructor. The session unsubscribes when it stops.
+     */
+    public void followRegistry(PeerRegistry registry) {
+        this.registry = registry;
+        selector.setAwaitNewSources(true);
+        registry.addListener(registryListener);
+        for (Peer p : registry.peers()) {
+            SharedFile f = registry.peerFile(p.peerId, contentHash);
+            if (f != null) addSource(p, f.partial);
+        }
+        if (stopped.get()) registry.removeListener(registryListener);
+    }
+
+    /**
+     * Lets other peers fetch the chunks this session already has through
+     * {@code server}. The session withdraws itself when it stops.
+     */
+    public void servePartial(ControlServer server) {
+        this.partialServer = server;
+        server.registerPartial(this);
+        if (stopped.get()) server.unregisterPartial(this);
+    }
+
+    /**
+     * Makes this session playable through {@code server} and returns its URL.
+     * If the session stops without completing it is withdrawn again; a
+     * completed file stays playable.
+     */
+    public URI serveHttp(LocalStreamServer server) {
+        this.httpServer = server;
+        URI uri = server.register(this);
+        if (stopped.get() && !completed.get()) server.unregister(this);
+        return uri;
+    }
 
-        this.pool = Executors.newFixedThreadPool(Math.max(2, Math.min(8, sources.size())));
-        this.received = new BitSet(numChunks);
-        this.attempts = new int[numChunks];
+    /** Starts using {@code peer}; a known partial source that now has the whole file is promoted. */
+    public void addSource(Peer peer, boolean partial) {
+        if (stopped.get() || completed.get() || AppConfig.PEER_ID.equals(peer.peerId)) return;
+        if (sources.putIfAbsent(peer.peerId, peer) != null) {
+            PeerHave h = partial ? null : partialPeers.get(peer.peerId);
+            if (h != null) becameComplete(h);
+            return;
+        }
+        // Register it as partial before the selector can hand it out.
+        if (partial) {
+            partialPeers.put(peer.peerId, new PeerHave(peer));
+        } else {
+            scheduler.addAvailability(allChunks(), 1);
+        }
+        selector.add(peer);
+        log("New source for " + displayName + ": " + peer + (partial ? " (partial)" : ""));
+        transfers.wakeup();
+    }
+
+    /** Stops using a peer that left or no longer shares the file; its in-flight requests finish on their own. */
+    public void removeSource(String peerId) {
+        Peer peer = sources.remove(peerId);
+        if (peer == null) return;
+        selector.retire(peerId);
+        PeerHave h = partialPeers.remove(peerId);
+        BitSet lost;
+        if (h != null) {
+            synchronized (h) {
+                h.retired = true;
+                lost = (BitSet) h.have.clone();
+            }
+        } else {
+            lost = allChunks();
+        }
+        scheduler.addAvailability(lost, -1);
+        log("Source left " + displayName + ": " + peer);
+        listener.onPeerUpdate(peer, -1, progress01(), "Left");
     }
 
     public void start() throws IOException {
@@ -69,107 +258,701 @@ public class StreamSession {
             return;
         }
 
+        if (chunkListHash != null) {
+            chunkHashes = fetchChunkHashes();
+            sharedFile.chunkHashes = chunkHashes;
+        }
+
         Files.createDirectories(outputFile.getParent());
-        try (RandomAccessFile raf = new RandomAccessFile(outputFile.toFile(), "rw")) {
-            raf.setLength(fileSizeBytes);
+        BitSet resumed = resumeFlushMs > 0 && Files.exists(outputFile) ? resume.load() : new BitSet();
+        writer = new ChunkWriter(outputFile, fileSizeBytes, "mmap".equalsIgnoreCase(AppConfig.outputWriter()));
+        if (!resumed.isEmpty()) {
+            int listed = resumed.cardinality();
+            revalidate(resumed);
+            scheduler.restore(resumed, chunkHashes != null);
+            for (int i = resumed.nextSetBit(0); i >= 0; i = resumed.nextSetBit(i + 1)) recordHave(i);
+            savedCount = scheduler.receivedCount();
+            log("Resuming " + displayName + ": " + savedCount + "/" + numChunks + " chunks already buffered"
+                    + (listed > savedCount ? " (" + (listed - savedCount) + " failed revalidation)" : ""));
         }
 
-        log("Streaming started: " + displayName + " chunks=" + numChunks + " size=" + fileSizeBytes);
+        log("Streaming started: " + displayName + " chunks=" + numChunks + " size=" + fileSizeBytes
+                + (chunkHashes == null ? " (chunks unverified)" : ""));
+        metrics.startedAtMs.set(System.currentTimeMillis());
+        discardedAtStart = client.discardedBytes();
+        if (scheduler.receivedCount() > 0) progressed();
+        if (completed.get()) return;
 
-        for (int i = 0; i < numChunks; i++) {
-            int chunkIndex = i;
-            pool.submit(() -> downloadOne(chunkIndex));
-        }
+        Threads.start("stream-monitor-" + contentHash.substring(0, Math.min(8, contentHash.length())), this::monitorLoop);
+        transfers.register(this);
+    }
 
-        pool.submit(this::monitorLoop);
+    /** The chunk hash list from the first source that has one matching the catalog, else null. */
+    private List<String> fetchChunkHashes() {
+        List<Peer> order = new ArrayList<>(sources.values());
+        // Complete sources first: partial ones may not have the list.
+        order.sort((a, b) -> Boolean.compare(partialPeers.containsKey(a.peerId), partialPeers.containsKey(b.peerId)));
+        for (Peer p : order) {
+            try {
+                return client.requestChunkHashes(p, contentHash, numChunks, chunkListHash, 3000);
+            } catch (IOException e) {
+                log("No chunk hashes from " + p + ": " + e.getMessage());
+            }
+        }
+        return null;
     }
 
     public void stop() {
-        stopped.set(true);
-        pool.shutdownNow();
+        if (!stopped.compareAndSet(false, true)) return;
+        transfers.unregister(this);
+        PeerRegistry r = registry;
+        if (r != null) r.removeListener(registryListener);
+        ControlServer server = partialServer;
+        if (server != null) server.unregisterPartial(this);
+        if (!completed.get()) {
+            withdrawHttp();
+            saveResume();
+        }
+        // Requests still in flight finish on their own; cancellable ones are dropped now.
+        for (Integer i : racers.keySet()) cancelRacers(i);
+        closeWriter();
+    }
+
+    private void withdrawHttp() {
+        LocalStreamServer http = httpServer;
+        if (http != null) http.unregister(this);
+    }
+
+    public TransferManager.Priority priority() {
+        return priority;
+    }
+
+    /** Foreground streams (the one being watched) get workers and bandwidth first. */
+    public void setPriority(TransferManager.Priority priority) {
+        this.priority = priority;
+        transfers.wakeup();
+    }
+
+    public StreamMetrics metrics() {
+        return metrics;
+    }
+
+    public String contentHash() {
+        return contentHash;
+    }
+
+    public String displayName() {
+        return displayName;
+    }
+
+    public long fileSizeBytes() {
+        return fileSizeBytes;
+    }
+
+    public Path outputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Moves the playback position, e.g. when the viewer jumps ahead. Chunks
+     * from the new position get the urgency window and the rest of the work
+     * is reordered around it. With {@code p2p.seekCancelBehind}, cancellable
+     * requests for chunks before the new position are abandoned.
+     */
+    public void seek(long byteOffset) {
+        int chunkIndex = (int) Math.max(0, Math.min(numChunks, byteOffset / Chunker.CHUNK_SIZE));
+        playback.seek(chunkIndex, System.currentTimeMillis());
+        scheduler.setCursor(chunkIndex);
+        transfers.wakeup();
+        if (AppConfig.seekCancelBehind()) {
+            for (Integer i : racers.keySet()) {
+                if (i < chunkIndex) cancelRacers(i);
+            }
+        }
+        listener.onGlobalBuffer(progress01(), scheduler.contiguousFrom(chunkIndex));
     }
 
-    private void downloadOne(int chunkIndex) {
-        if (stopped.get()) return;
+    /**
+     * Waits until the byte at {@code offset} is in the buffer file, for a
+     * reader that plays the file while it downloads. The chunk holding it and
+     * the urgency window after it are fetched ahead of everything else; a
+     * request far from the playback position is treated as a {@link #seek}.
+     * Returns false if it did not arrive within {@code timeoutMs}.
+     */
+    public boolean awaitAvailable(long offset, long timeoutMs) throws InterruptedException {
+        if (offset < 0 || offset >= fileSizeBytes) return false;
+        int chunkIndex = (int) (offset / Chunker.CHUNK_SIZE);
+        if (scheduler.isFarFromCursor(chunkIndex)) seek(offset);
+        if (scheduler.demand(chunkIndex)) transfers.wakeup();
+        if (!scheduler.awaitReceived(chunkIndex, timeoutMs)) return false;
+        if (metrics.firstServedAfterMs.get() < 0) {
+            metrics.firstServedAfterMs.compareAndSet(-1, System.currentTimeMillis() - metrics.startedAtMs.get());
+        }
+        return true;
+    }
 
-        synchronized (received) {
-            if (received.get(chunkIndex)) return; // duplicate
+    /**
+     * Called by a {@link TransferManager} worker: the next request this session
+     * wants to make, with its chunk(s) and peer slot already reserved, or null
+     * if it has nothing it can send right now.
+     */
+    Runnable nextWork(long now) {
+        if (stopped.get()) return null;
+        ChunkScheduler.Assignment a = scheduler.next(now);
+        if (a == null) return null;
+        long bytes = (long) a.count() * Chunker.CHUNK_SIZE;
+        Peer peer = selector.acquire(bytes, excludedPeers(a), transfers::tryAcquirePeer);
+        if (peer == null) {
+            // Every peer is at its in-flight limit (or already racing for this chunk).
+            scheduler.unassign(a);
+            return null;
         }
+        transfers.charge(priority, bytes);
+        return () -> runAssignment(a, peer);
+    }
+
+    /** Delay until this session's next backed-off chunk becomes eligible, for idle workers. */
+    long nextRetryDelay(long now) {
+        return scheduler.nextRetryDelay(now);
+    }
 
-        // Round-robin peer selection, with retry.
-        int attempt = attempts[chunkIndex]++;
-        Peer peer = sources.get(Math.floorMod(chunkIndex + attempt, sources.size()));
+    private void runAssignment(ChunkScheduler.Assignment a, Peer peer) {
+        try {
+            if (a.endgame()) {
+                downloadEndgame(peer, a.first());
+            } else if (a.urgent()) {
+                downloadUrgent(peer, a.first());
+            } else {
+                downloadRange(peer, a.first(), a.count());
+            }
+        } finally {
+            transfers.releasePeer(peer.peerId);
+        }
+    }
 
+    /** A chunk the player needs soon: single request with a tight timeout. */
+    private void downloadUrgent(Peer peer, int chunkIndex) {
+        metrics.urgentRequests.incrementAndGet();
+        long t0 = System.currentTimeMillis();
         try {
             listener.onPeerUpdate(peer, chunkIndex, progress01(), "Requesting");
-            var payload = client.requestChunk(peer, contentHash, chunkIndex, 4000);
-            byte[] data = payload.bytes();
+            byte[] data = race(peer, chunkIndex, urgentTimeoutMs, true);
+            verify(peer, chunkIndex, data);
+            // Only now is the request done; a failed store is recorded as its one failure instead.
+            storeChunk(peer, chunkIndex, data);
+            selector.onSuccess(peer, data.length, System.currentTimeMillis() - t0, 1);
+        } catch (CancellationException e) {
+            lostRace(peer, chunkIndex);
+        } catch (Exception e) {
+            peerFailed(peer, chunkIndex);
+            metrics.urgentFailures.incrementAndGet();
+            listener.onPeerUpdate(peer, chunkIndex, progress01(), "Retry");
+            retryLater(peer, chunkIndex, System.currentTimeMillis(), true);
+        }
+    }
 
-            // Write chunk at correct offset (out-of-order allowed).
-            long offset = Chunker.chunkOffset(chunkIndex);
-            try (RandomAccessFile raf = new RandomAccessFile(outputFile.toFile(), "rw")) {
-                raf.seek(offset);
-                raf.write(data);
-            }
+    /** Endgame duplicate of a chunk another peer is already fetching; the loser is cancelled. */
+    private void downloadEndgame(Peer peer, int chunkIndex) {
+        metrics.endgameRequests.incrementAndGet();
+        long t0 = System.currentTimeMillis();
+        try {
+            listener.onPeerUpdate(peer, chunkIndex, progress01(), "Endgame");
+            byte[] data = race(peer, chunkIndex, 4000, false);
+            verify(peer, chunkIndex, data);
+            storeChunk(peer, chunkIndex, data);
+            selector.onSuccess(peer, data.length, System.currentTimeMillis() - t0, 1);
+        } catch (CancellationException e) {
+            lostRace(peer, chunkIndex);
+        } catch (Exception e) {
+            peerFailed(peer, chunkIndex);
+            listener.onPeerUpdate(peer, chunkIndex, progress01(), "Retry");
+            retryLater(peer, chunkIndex, System.currentTimeMillis(), true);
+        }
+    }
 
-            boolean wasNew;
-            synchronized (received) {
-                wasNew = !received.get(chunkIndex);
-                if (wasNew) received.set(chunkIndex);
+    private byte[] race(Peer peer, int chunkIndex, int timeoutMs, boolean urgent) throws IOException {
+        Racer racer = new Racer(peer.peerId, client.startChunk(peer, contentHash, chunkIndex, timeoutMs, urgent));
+        Set<Racer> set = racers.computeIfAbsent(chunkIndex, k -> ConcurrentHashMap.newKeySet());
+        set.add(racer);
+        try {
+            // Another racer may have won while we were registering.
+            if (scheduler.isReceived(chunkIndex)) racer.pending().cancel();
+            return checkedBytes(chunkIndex, racer.pending().await());
+        } finally {
+            set.remove(racer);
+            racers.computeIfPresent(chunkIndex, (k, v) -> v.isEmpty() ? null : v);
+        }
+    }
+
+    private void lostRace(Peer peer, int chunkIndex) {
+        metrics.cancelledRequests.incrementAndGet();
+        selector.onCancelled(peer);
+        scheduler.unassign(new ChunkScheduler.Assignment(chunkIndex, 1, false, true));
+    }
+
+    private Set<String> excludedPeers(ChunkScheduler.Assignment a) {
+        Set<String> ids = new HashSet<>();
+        if (a.endgame()) {
+            Set<Racer> set = racers.get(a.first());
+            if (set != null) for (Racer r : set) ids.add(r.peerId());
+        }
+        if (!failedFrom.isEmpty()) {
+            for (int i = a.first(); i < a.first() + a.count(); i++) {
+                Set<String> bad = failedFrom.get(i);
+                if (bad != null) ids.addAll(bad);
             }
+        }
+        // If every source is excluded, let any of them try again rather than stall.
+        if (ids.size() >= sources.size()) ids.clear();
+        // Partial sources never get chunks they have not advertised.
+        for (PeerHave h : partialPeers.values()) {
+            if (!h.hasAll(a.first(), a.count())) ids.add(h.peer.peerId);
+        }
+        return ids;
+    }
 
-            if (wasNew) {
-                int done = downloadedChunks.incrementAndGet();
-                listener.onPeerUpdate(peer, chunkIndex, progress01(), "OK");
+    /**
+     * The bytes of a response, if it is for the chunk that was asked for. A
+     * header naming another chunk or file, or the wrong length, fails the chunk.
+     */
+    private byte[] checkedBytes(int chunkIndex, ControlClient.ChunkPayload payload) throws IOException {
+        ChunkResponseHeader h = payload.header();
+        long expected = Math.min(Chunker.CHUNK_SIZE, fileSizeBytes - Chunker.chunkOffset(chunkIndex));
+        if (h == null || h.chunkIndex != chunkIndex || !contentHash.equals(h.contentHash)
+                || h.lengthBytes != expected || payload.bytes().length != expected) {
+            throw new IOException("Response for chunk " + chunkIndex + " does not match the request");
+        }
+        return payload.bytes();
+    }
 
-                // Update global buffer status.
-                int contiguous = contiguousFromStart();
-                listener.onGlobalBuffer(done / (double) numChunks, contiguous);
+    /** Checks a chunk against the catalog's chunk hash before it is written or marked received. */
+    private void verify(Peer peer, int chunkIndex, byte[] data) throws CorruptChunkException {
+        if (chunkHashes == null) return;
+        if (chunkIndex >= 0 && chunkIndex < numChunks
+                && chunkHashes.get(chunkIndex).equals(HashUtil.sha256Hex(data, 0, data.length))) {
+            return;
+        }
+        metrics.corruptChunks.incrementAndGet();
+        listener.onPeerUpdate(peer, chunkIndex, progress01(), "Corrupt");
+        log("Chunk " + chunkIndex + " from " + peer + " failed verification; re-fetching");
+        throw new CorruptChunkException(chunkIndex);
+    }
 
-                // Start playback when buffer threshold met.
-                if (!startedPlayback.get() && contiguous >= playThresholdChunks) {
-                    if (startedPlayback.compareAndSet(false, true)) {
-                        listener.onReadyToPlay(outputFile);
-                    }
-                }
+    private static final class CorruptChunkException extends IOException {
+        private static final long serialVersionUID = 1L;
 
-                if (done == numChunks) {
-                    listener.onCompleted(outputFile);
-                    stop();
-                }
+        CorruptChunkException(int chunkIndex) {
+            super("Chunk " + chunkIndex + " failed hash verification");
+        }
+    }
+
+    private void downloadRange(Peer peer, int first, int count) {
+        long t0 = System.currentTimeMillis();
+        // Per chunk: stored (or a duplicate) by us, or cancelled because someone else won it.
+        boolean[] handled = new boolean[count];
+        boolean[] cancelled = new boolean[count];
+        List<Racer> registered = new ArrayList<>(count);
+        try {
+            listener.onPeerUpdate(peer, first, progress01(), "Requesting");
+            var chunks = client.startChunkRange(peer, contentHash, first, count, 4000 + 500 * count);
+            // Each chunk races like a single request, so an endgame copy that wins cancels it here.
+            for (int i = 0; i < count; i++) {
+                Racer racer = new Racer(peer.peerId, chunks.get(i));
+                racers.computeIfAbsent(first + i, k -> ConcurrentHashMap.newKeySet()).add(racer);
+                registered.add(racer);
+                if (scheduler.isReceived(first + i)) racer.pending().cancel();
             }
 
+            long bytes = 0;
+            int good = 0;
+            int lost = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] data;
+                try {
+                    data = checkedBytes(first + i, chunks.get(i).await());
+                } catch (CancellationException e) {
+                    cancelled[i] = true;
+                    lost++;
+                    continue;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    continue;
+                }
+                bytes += data.length;
+                try {
+                    verify(peer, first + i, data);
+                    good++;
+                } catch (CorruptChunkException e) {
+                    continue;
+                }
+                storeChunk(peer, first + i, data);
+                handled[i] = true;
+            }
+            if (good + lost < count) {
+                peerFailed(peer, first);
+            } else if (good > 0) {
+                selector.onSuccess(peer, bytes, System.currentTimeMillis() - t0, good);
+            } else {
+                metrics.cancelledRequests.incrementAndGet();
+                selector.onCancelled(peer);
+            }
         } catch (Exception e) {
-            listener.onPeerUpdate(peer, chunkIndex, progress01(), "Retry");
+            peerFailed(peer, first);
+            listener.onPeerUpdate(peer, first, progress01(), "Retry");
+        } finally {
+            for (int i = 0; i < registered.size(); i++) {
+                Set<Racer> set = racers.get(first + i);
+                if (set != null) set.remove(registered.get(i));
+                racers.computeIfPresent(first + i, (k, v) -> v.isEmpty() ? null : v);
+            }
+        }
+
+        // Whatever the range did not deliver goes back to the scheduler. A failed
+        // range costs one attempt, charged to its first missing chunk, not one per chunk.
+        long now = System.currentTimeMillis();
+        boolean charged = false;
+        for (int i = first; i < first + count; i++) {
+            if (handled[i - first]) continue;
+            if (cancelled[i - first] || scheduler.isReceived(i)) {
+                scheduler.unassign(new ChunkScheduler.Assignment(i, 1, false, false));
+            } else {
+                retryLater(peer, i, now, !charged);
+                charged = true;
+            }
+        }
+    }
 
-            // Re-submit later if not received yet.
-            if (!stopped.get()) {
-                sleepQuiet(150 + Math.min(2000, attempts[chunkIndex] * 200));
-                downloadOne(chunkIndex);
+    private void peerFailed(Peer peer, int chunkIndex) {
+        long quarantineMs = selector.onFailure(peer);
+        if (quarantineMs <= 0) return;
+        log("Quarantined " + peer + " for " + quarantineMs + " ms after repeated failures");
+        listener.onPeerUpdate(peer, chunkIndex, progress01(), "Quarantined");
+    }
+
+    /**
+     * Hands a failed chunk back to the scheduler for a backed-off retry that
+     * avoids {@code peer}; {@code charge} false if it did not use an attempt.
+     * A chunk past its attempt budget is parked while the rest of the file
+     * downloads. The stream gives up only when no live source is left that
+     * could serve the chunk; the resume state keeps what was already buffered.
+     */
+    private void retryLater(Peer peer, int chunkIndex, long now, boolean charge) {
+        failedFrom.computeIfAbsent(chunkIndex, k -> ConcurrentHashMap.newKeySet()).add(peer.peerId);
+        if (scheduler.markFailed(chunkIndex, now, charge) || stopped.get()) return;
+        if (hasLiveSource(chunkIndex)) {
+            if (charge && scheduler.attempts(chunkIndex) == AppConfig.chunkMaxAttempts()) {
+                log("Chunk " + chunkIndex + " of " + displayName + " failed "
+                        + scheduler.attempts(chunkIndex) + " times; retrying it less often");
             }
+            return;
+        }
+        log("Giving up on " + displayName + ": chunk " + chunkIndex + " failed "
+                + scheduler.attempts(chunkIndex) + " times and no live source has it");
+        stop();
+    }
+
+    /**
+     * Whether a source outside quarantine could serve {@code chunkIndex}, or
+     * one may yet join through the registry.
+     */
+    private boolean hasLiveSource(int chunkIndex) {
+        if (registry != null) return true;
+        for (Peer p : sources.values()) {
+            if (!selector.isUsable(p.peerId)) continue;
+            PeerHave h = partialPeers.get(p.peerId);
+            if (h == null || h.hasAll(chunkIndex, 1)) return true;
+        }
+        return false;
+    }
+
+    private void storeChunk(Peer peer, int chunkIndex, byte[] data) throws IOException {
+        if (scheduler.isReceived(chunkIndex)) {
+            // Lost an endgame race after the bytes were already on the wire.
+            metrics.duplicateBytes.addAndGet(data.length);
+            scheduler.unassign(new ChunkScheduler.Assignment(chunkIndex, 1, false, false));
+            return;
+        }
+
+        // Write chunk at correct offset (out-of-order allowed).
+        writer.write(chunkIndex, data);
+
+        if (!scheduler.markReceived(chunkIndex, chunkHashes != null)) {
+            metrics.duplicateBytes.addAndGet(data.length);
+            return;
+        }
+        cancelRacers(chunkIndex);
+        failedFrom.remove(chunkIndex);
+        recordHave(chunkIndex);
+
+        listener.onPeerUpdate(peer, chunkIndex, progress01(), "OK");
+        progressed();
+    }
+
+    private void progressed() {
+        int done = scheduler.receivedCount();
+
+        // Update global buffer status.
+        int cursor = scheduler.cursor();
+        int contiguous = scheduler.contiguousFrom(cursor);
+        listener.onGlobalBuffer(done / (double) numChunks, contiguous);
+
+        // Start playback when buffer threshold met.
+        if (!startedPlayback.get() && contiguous >= Math.min(playThresholdChunks, numChunks - cursor)) {
+            if (startedPlayback.compareAndSet(false, true)) {
+                long now = System.currentTimeMillis();
+                metrics.readyAfterMs.set(now - metrics.startedAtMs.get());
+                playback.start(now);
+                listener.onReadyToPlay(outputFile);
+            }
+        }
+
+        String digest = digestContiguous(done == numChunks);
+        if (done == numChunks && completed.compareAndSet(false, true)) {
+            // The client is shared, so this also counts other sessions' discards made meanwhile.
+            metrics.duplicateBytes.addAndGet(client.discardedBytes() - discardedAtStart);
+            try {
+                resume.delete();
+            } catch (IOException e) {
+                log("Could not remove resume state: " + e.getMessage());
+            }
+            if (digest == null) {
+                log("Could not check " + displayName + " against its content hash");
+            } else if (!contentHash.equals(digest)) {
+                // Every chunk matched a hash list that was not for this content; nothing here can be trusted.
+                log("Download of " + displayName + " does not match its content hash"
+                        + (chunkHashes != null ? " (bad chunk hash list)" : "") + "; discarding it");
+                closeWriter();
+                withdrawHttp();
+                stop();
+                return;
+            }
+            log("Stream metrics for " + displayName + ": " + metrics);
+            try {
+                writer.force();
+            } catch (IOException e) {
+                log("Could not flush " + outputFile + ": " + e.getMessage());
+            }
+            closeWriter();
+            listener.onCompleted(outputFile);
+            stop();
+        }
+    }
+
+    /**
+     * Feeds newly contiguous chunks into the whole-file digest; with
+     * {@code finish}, returns its hex value once every chunk is in. Without
+     * it, a worker that finds another one digesting leaves it the work.
+     */
+    private String digestContiguous(boolean finish) {
+        if (finish) {
+            digestLock.lock();
+        } else if (!digestLock.tryLock()) {
+            return null;
+        }
+        try {
+            if (contentDigestHex != null) return contentDigestHex;
+            try {
+                while (digestedChunks < numChunks && scheduler.isReceived(digestedChunks)) {
+                    if (digestBuf == null) digestBuf = new byte[Chunker.CHUNK_SIZE];
+                    int len = (int) Math.min(Chunker.CHUNK_SIZE, fileSizeBytes - Chunker.chunkOffset(digestedChunks));
+                    writer.read(digestedChunks, digestBuf, len);
+                    contentDigest.update(digestBuf, 0, len);
+                    digestedChunks++;
+                }
+            } catch (IOException e) {
+                if (!stopped.get()) log("Could not read back " + outputFile + ": " + e.getMessage());
+                return null;
+            }
+            if (!finish || digestedChunks < numChunks) return null;
+            digestBuf = null;
+            contentDigestHex = HashUtil.toHex(contentDigest.digest());
+            return contentDigestHex;
+        } finally {
+            digestLock.unlock();
         }
     }
 
     private void monitorLoop() {
+        int ticks = 0;
         while (!stopped.get()) {
-            sleepQuiet(500);
-            int contiguous = contiguousFromStart();
-            listener.onGlobalBuffer(progress01(), contiguous);
+            sleepQuiet(100);
+            playback.tick(System.currentTimeMillis(), scheduler::isReceived);
+            if (scheduler.setCursor(playback.cursor())) transfers.wakeup();
+            if (resumeFlushMs > 0 && ticks % Math.max(1, resumeFlushMs / 100) == 0) saveResume();
+            if (!partialPeers.isEmpty() && ticks % Math.max(1, havePollMs / 100) == 0
+                    && pollingHaves.compareAndSet(false, true)) {
+                // Off the monitor thread so a slow peer does not stall playback ticks.
+                Threads.start("have-poll-" + contentHash.substring(0, Math.min(8, contentHash.length())), this::pollHaves);
+            }
+            if (++ticks % 5 == 0) {
+                listener.onGlobalBuffer(progress01(), scheduler.contiguousFrom(scheduler.cursor()));
+                for (PeerSelector.Snapshot s : selector.snapshot()) {
+                    listener.onPeerRate(s.peer(), s.bytesPerSec(), s.latencyMs(), s.inFlight());
+                }
+            }
         }
     }
 
-    private double progress01() {
-        return numChunks == 0 ? 0.0 : downloadedChunks.get() / (double) numChunks;
+    private void pollHaves() {
+        try {
+            for (PeerHave h : partialPeers.values()) {
+                if (stopped.get()) return;
+                try {
+                    applyHave(h, client.requestHave(h.peer, contentHash, h.version, Math.min(havePollMs, 2000)));
+                } catch (IOException e) {
+                    // Dead or restarted peer: chunk requests to it fail and retry elsewhere.
+                }
+            }
+            transfers.wakeup();
+        } finally {
+            pollingHaves.set(false);
+        }
+    }
+
+    private void applyHave(PeerHave h, HaveResponse r) {
+        if (r.complete) {
+            becameComplete(h);
+            return;
+        }
+        BitSet gained;
+        synchronized (h) {
+            if (h.retired) return;
+            if (r.bitmap != null) {
+                gained = BitSet.valueOf(Base64.getDecoder().decode(r.bitmap));
+            } else {
+                gained = new BitSet(numChunks);
+                if (r.added != null) for (int i : r.added) if (i >= 0 && i < numChunks) gained.set(i);
+            }
+            gained.andNot(h.have);
+            h.have.or(gained);
+            h.version = r.version;
+        }
+        scheduler.addAvailability(gained, 1);
+    }
+
+    /** A partial source now has every chunk: it is treated as a full source from here on. */
+    private void becameComplete(PeerHave h) {
+        BitSet gained = allChunks();
+        synchronized (h) {
+            if (h.retired || !partialPeers.remove(h.peer.peerId, h)) return;
+            h.retired = true;
+            gained.andNot(h.have);
+        }
+        scheduler.addAvailability(gained, 1);
+        transfers.wakeup();
+    }
+
+    private BitSet allChunks() {
+        BitSet all = new BitSet(numChunks);
+        all.set(0, numChunks);
+        return all;
     }
 
-    private int contiguousFromStart() {
-        synchronized (received) {
-            int i = 0;
-            while (i < numChunks && received.get(i)) i++;
-            return i;
+    /** Chunks a partial source advertised, and the have-set version they bring us to. */
+    private static final class PeerHave {
+        final Peer peer;
+        final BitSet have = new BitSet();
+        int version;
+        // Left, or promoted to a full source; its have-set no longer counts.
+        boolean retired;
+
+        PeerHave(Peer peer) {
+            this.peer = peer;
+        }
+
+        synchronized boolean hasAll(int first, int count) {
+            int missing = have.nextClearBit(first);
+            return missing >= first + count;
+        }
+    }
+
+    private void recordHave(int chunkIndex) {
+        synchronized (haveLog) {
+            haveLog[haveCount++] = chunkIndex;
         }
     }
 
+    @Override
+    public SharedFile file() {
+        return sharedFile;
+    }
+
+    @Override
+    public boolean hasChunk(int chunkIndex) {
+        return chunkIndex >= 0 && chunkIndex < numChunks && scheduler.isReceived(chunkIndex);
+    }
+
+    @Override
+    public int haveVersion() {
+        synchronized (haveLog) {
+            return haveCount;
+        }
+    }
+
+    @Override
+    public BitSet haveBitmap() {
+        return scheduler.receivedSnapshot();
+    }
+
+    @Override
+    public int[] haveSince(int sinceVersion) {
+        synchronized (haveLog) {
+            return Arrays.copyOfRange(haveLog, Math.min(Math.max(0, sinceVersion), haveCount), haveCount);
+        }
+    }
+
+    /**
+     * Drops chunks listed in the resume state that do not match their catalog
+     * hash, e.g. because the buffer file was changed outside the app.
+     */
+    private void revalidate(BitSet chunks) throws IOException {
+        if (chunkHashes == null) return;
+        byte[] buf = new byte[Chunker.CHUNK_SIZE];
+        for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+            int len = (int) Math.min(Chunker.CHUNK_SIZE, fileSizeBytes - Chunker.chunkOffset(i));
+            writer.read(i, buf, len);
+            if (!chunkHashes.get(i).equals(HashUtil.sha256Hex(buf, 0, len))) chunks.clear(i);
+        }
+    }
+
+    /** Persists the received bitmap if it changed since the last save. */
+    private synchronized void saveResume() {
+        if (resumeFlushMs <= 0) return;
+        int count = scheduler.receivedCount();
+        if (count == savedCount || count == 0 || count == numChunks) return;
+        try {
+            BitSet snapshot = scheduler.receivedSnapshot();
+            // Chunks in the snapshot were written before being marked, so this makes them durable.
+            writer.force();
+            resume.save(snapshot);
+            savedCount = count;
+        } catch (IOException e) {
+            log("Could not save resume state: " + e.getMessage());
+        }
+    }
+
+    private void closeWriter() {
+        ChunkWriter w = writer;
+        if (w == null) return;
+        try {
+            w.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void cancelRacers(int chunkIndex) {
+        Set<Racer> set = racers.get(chunkIndex);
+        if (set == null) return;
+        for (Racer r : set) r.pending().cancel();
+    }
+
+    private record Racer(String peerId, ControlClient.PendingChunk pending) {}
+
+    private double progress01() {
+        return numChunks == 0 ? 0.0 : scheduler.receivedCount() / (double) numChunks;
+    }
+
     private void log(String msg) {
         if (listener != null) listener.onLog(msg);
     }
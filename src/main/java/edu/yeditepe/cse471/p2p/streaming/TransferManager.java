@@ -0,0 +1,204 @@
+package edu.yeditepe.cse471.p2p.streaming;
+
+import edu.yeditepe.cse471.p2p.network.ControlClient;
+import edu.yeditepe.cse471.p2p.util.AppConfig;
+import edu.yeditepe.cse471.p2p.util.Threads;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Process-wide owner of download resources shared by every
+ * {@link StreamSession}: the pooled {@link ControlClient}, one set of worker
+ * threads, a per-peer request cap across sessions and an optional bandwidth
+ * budget.
+ *
+ * <p>Workers take work from sessions in priority order: foreground sessions
+ * (the one being watched) first, background sessions every
+ * {@code BACKGROUND_EVERY}th pick so they are never starved. Within a
+ * priority, sessions take turns. A priority whose bandwidth budget is
+ * overdrawn is skipped until it refills, so no worker sleeps on the budget
+ * while holding a peer slot and claimed chunks.
+ */
+public class TransferManager {
+    public enum Priority { FOREGROUND, BACKGROUND }
+
+    private static final int BACKGROUND_EVERY = 4;
+    // Idle workers are woken by completions, new sessions, seeks and retry timers; this is a backstop.
+    private static final long IDLE_WAIT_MS = 250;
+
+    private final ControlClient client;
+    private final List<StreamSession> sessions = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> peerInFlight = new HashMap<>();
+    private final int peerMaxInFlight;
+    private final RateLimiter globalRate;
+    private final RateLimiter backgroundRate;
+    private final int workers;
+
+    private ExecutorService pool;
+    private long picks;
+    private int rotation;
+
+    public TransferManager(ControlClient client) {
+        this.client = client;
+        this.peerMaxInFlight = Math.max(1, AppConfig.peerMaxInFlightGlobal());
+        this.globalRate = RateLimiter.kbps(AppConfig.maxDownloadKBps());
+        this.backgroundRate = RateLimiter.kbps(AppConfig.backgroundMaxKBps());
+        this.workers = Threads.virtualEnabled() ? AppConfig.chunkConcurrency() : Math.max(2, AppConfig.transferWorkers());
+    }
+
+    ControlClient client() {
+        return client;
+    }
+
+    synchronized void register(StreamSession session) {
+        sessions.add(session);
+        if (pool == null) {
+            pool = Threads.newBlockingExecutor("transfer", Threads.virtualEnabled() ? 0 : workers);
+            for (int i = 0; i < workers; i++) pool.submit(this::workerLoop);
+        }
+        notifyAll();
+    }
+
+    synchronized void unregister(StreamSession session) {
+        sessions.remove(session);
+    }
+
+    /** Stops every session (keeping their resume state) and the workers. */
+    public void stopAll() {
+        for (StreamSession s : sessions) s.stop();
+        ExecutorService p;
+        synchronized (this) {
+            p = pool;
+            pool = null;
+        }
+        if (p != null) p.shutdownNow();
+    }
+
+    /** Wakes idle workers, e.g. after a session's state changed. */
+    synchronized void wakeup() {
+        notifyAll();
+    }
+
+    private void workerLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+                Runnable work = pick(now);
+                if (work == null) {
+                    long waitMs = IDLE_WAIT_MS;
+                    for (StreamSession s : sessions) waitMs = Math.min(waitMs, s.nextRetryDelay(now));
+                    for (Priority p : Priority.values()) {
+                        long budgetMs = budgetDelay(p, now);
+                        if (budgetMs > 0) waitMs = Math.min(waitMs, budgetMs);
+                    }
+                    synchronized (this) {
+                        wait(Math.max(1, waitMs));
+                    }
+                    continue;
+                }
+                try {
+                    work.run();
+                } finally {
+                    wakeup();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Runnable pick(long now) {
+        boolean backgroundFirst;
+        int start;
+        synchronized (this) {
+            backgroundFirst = ++picks % BACKGROUND_EVERY == 0;
+            start = rotation++;
+        }
+        Priority first = backgroundFirst ? Priority.BACKGROUND : Priority.FOREGROUND;
+        Priority second = backgroundFirst ? Priority.FOREGROUND : Priority.BACKGROUND;
+        Runnable work = pick(first, start, now);
+        return work != null ? work : pick(second, start, now);
+    }
+
+    private Runnable pick(Priority priority, int start, long now) {
+        if (budgetDelay(priority, now) > 0) return null;
+        StreamSession[] snapshot = sessions.toArray(new StreamSession[0]);
+        int n = snapshot.length;
+        for (int k = 0; k < n; k++) {
+            StreamSession s = snapshot[Math.floorMod(start + k, n)];
+            if (s.priority() != priority) continue;
+            Runnable work = s.nextWork(now);
+            if (work != null) return work;
+        }
+        return null;
+    }
+
+    /** Reserves one request slot on {@code peerId} across all sessions. */
+    synchronized boolean tryAcquirePeer(String peerId) {
+        int n = peerInFlight.getOrDefault(peerId, 0);
+        if (n >= peerMaxInFlight) return false;
+        peerInFlight.put(peerId, n + 1);
+        return true;
+    }
+
+    synchronized void releasePeer(String peerId) {
+        peerInFlight.computeIfPresent(peerId, (k, n) -> n <= 1 ? null : n - 1);
+        notifyAll();
+    }
+
+    /** Milliseconds until {@code priority} has bandwidth budget again; 0 if it may start a request now. */
+    long budgetDelay(Priority priority, long now) {
+        long delay = globalRate.delayMs(now);
+        if (priority == Priority.BACKGROUND) delay = Math.max(delay, backgroundRate.delayMs(now));
+        return delay;
+    }
+
+    /** Charges a request of {@code bytes} to the budget for {@code priority}; never blocks. */
+    void charge(Priority priority, long bytes) {
+        long now = System.currentTimeMillis();
+        if (priority == Priority.BACKGROUND) backgroundRate.take(bytes, now);
+        globalRate.take(bytes, now);
+    }
+
+    /**
+     * Token bucket with one second of burst; a rate of 0 means unlimited.
+     * Requests take their tokens up front and may overdraw the bucket; the
+     * next one waits until the debt is paid off.
+     */
+    static final class RateLimiter {
+        private final double bytesPerMs;
+        private double tokens;
+        private long last = System.currentTimeMillis();
+
+        private RateLimiter(double bytesPerMs) {
+            this.bytesPerMs = bytesPerMs;
+            this.tokens = bytesPerMs * 1000;
+        }
+
+        static RateLimiter kbps(int kbps) {
+            return new RateLimiter(Math.max(0, kbps) * 1024 / 1000.0);
+        }
+
+        synchronized long delayMs(long now) {
+            if (bytesPerMs <= 0) return 0;
+            refill(now);
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / bytesPerMs);
+        }
+
+        synchronized void take(long bytes, long now) {
+            if (bytesPerMs <= 0) return;
+            refill(now);
+            tokens -= bytes;
+        }
+
+        private void refill(long now) {
+            if (now <= last) return;
+            tokens = Math.min(bytesPerMs * 1000, tokens + (now - last) * bytesPerMs);
+            last = now;
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class ActiveStreamRow {
     private final IntegerProperty chunk = new SimpleIntegerProperty(0);
     private final DoubleProperty progress01 = new SimpleDoubleProperty(0.0);
     private final StringProperty status = new SimpleStringProperty("");
+    private final DoubleProperty rateKBps = new SimpleDoubleProperty(0.0);
 
     public ActiveStreamRow(String video, String sourcePeer) {
         setVideo(video);
@@ -20,6 +21,7 @@ public class ActiveStreamRow {
     public IntegerProperty chunkProperty() { return chunk; }
     public DoubleProperty progress01Property() { return progress01; }
     public StringProperty statusProperty() { return status; }
+    public DoubleProperty rateKBpsProperty() { return rateKBps; }
 
     public String getVideo() { return video.get(); }
     public void setVideo(String v) { video.set(v); }
@@ -35,4 +37,7 @@ public class ActiveStreamRow {
 
     public String getStatus() { return status.get(); }
     public void setStatus(String v) { status.set(v); }
+
+    public double getRateKBps() { return rateKBps.get(); }
+    public void setRateKBps(double v) { rateKBps.set(v); }
 }
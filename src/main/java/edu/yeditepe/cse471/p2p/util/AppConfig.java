@@ -33,6 +33,194 @@ public final class AppConfig {
         return Integer.parseInt(System.getProperty("p2p.discoveryAnnounceMs", "5000"));
     }
 
+    /** Announce intervals a peer may stay silent before it is considered gone. */
+    public static int peerExpiryAnnounces() {
+        return Integer.parseInt(System.getProperty("p2p.peerExpiryAnnounces", "3"));
+    }
+
+    /** How many times an announce may be relayed between segments (0 disables relaying). */
+    public static int discoveryMaxHops() {
+        return Integer.parseInt(System.getProperty("p2p.discoveryMaxHops", "3"));
+    }
+
+    /** UDP port for relayed announces; 0 means discoveryPort + 1. */
+    public static int discoveryRelayPort() {
+        int port = Integer.parseInt(System.getProperty("p2p.discoveryRelayPort", "0"));
+        return port > 0 ? port : discoveryPort() + 1;
+    }
+
+    /** Comma-separated host:relayPort of peers beyond the multicast scope to relay announces to. */
+    public static String discoverySeeds() {
+        return System.getProperty("p2p.discoverySeeds", "");
+    }
+
+    /** How long a discovery message id is remembered to drop duplicates. */
+    public static int discoveryDedupWindowMs() {
+        return Integer.parseInt(System.getProperty("p2p.discoveryDedupWindowMs", "30000"));
+    }
+
+    /** Target size of one page of catalog entries sent to peers; an entry is never split. */
+    public static int catalogPageBytes() {
+        return Integer.parseInt(System.getProperty("p2p.catalogPageBytes", String.valueOf(256 * 1024)));
+    }
+
+    public static int connectionsPerPeer() {
+        return Integer.parseInt(System.getProperty("p2p.connectionsPerPeer", "2"));
+    }
+
+    public static int pipelineDepth() {
+        return Integer.parseInt(System.getProperty("p2p.pipelineDepth", "4"));
+    }
+
+    public static int connectionIdleMs() {
+        return Integer.parseInt(System.getProperty("p2p.connectionIdleMs", "30000"));
+    }
+
+    public static int openFileCacheSize() {
+        return Integer.parseInt(System.getProperty("p2p.openFileCacheSize", "32"));
+    }
+
+    /** "nio" (selector event loops, default) or "blocking" (thread per connection). */
+    public static String serverEngine() {
+        return System.getProperty("p2p.serverEngine", "nio");
+    }
+
+    public static int serverEventLoops() {
+        int def = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return Integer.parseInt(System.getProperty("p2p.serverEventLoops", String.valueOf(def)));
+    }
+
+    /** Threads that build responses for the nio engine (catalog lookups, file opens), off the event loops. */
+    public static int serverWorkers() {
+        int def = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors() * 2));
+        return Integer.parseInt(System.getProperty("p2p.serverWorkers", String.valueOf(def)));
+    }
+
+    /** "platform" (default) or "virtual" threads for blocking socket work. */
+    public static String executorMode() {
+        return System.getProperty("p2p.executorMode", "platform");
+    }
+
+    /** Max chunk requests in flight per stream when running on virtual threads. */
+    public static int chunkConcurrency() {
+        return Integer.parseInt(System.getProperty("p2p.chunkConcurrency", "32"));
+    }
+
+    /** Offer the binary chunk framing on pooled connections (falls back to JSON lines). */
+    public static boolean binaryFraming() {
+        return Boolean.parseBoolean(System.getProperty("p2p.binaryFraming", "true"));
+    }
+
+    /** Adjacent chunks fetched from one peer in a single range request. */
+    public static int rangeChunks() {
+        return Integer.parseInt(System.getProperty("p2p.rangeChunks", "8"));
+    }
+
+    /** "deadline" (urgency window + rarest first, default) or "fifo" (index order). */
+    public static String chunkScheduler() {
+        return System.getProperty("p2p.chunkScheduler", "deadline");
+    }
+
+    /** Chunks ahead of the playback cursor that are fetched first, one by one. */
+    public static int urgentWindowChunks() {
+        return Integer.parseInt(System.getProperty("p2p.urgentWindowChunks", "8"));
+    }
+
+    public static int urgentTimeoutMs() {
+        return Integer.parseInt(System.getProperty("p2p.urgentTimeoutMs", "1500"));
+    }
+
+    /** Bitrate the simulated player consumes at, used for stall metrics and the cursor. */
+    public static int assumedBitrateKbps() {
+        return Integer.parseInt(System.getProperty("p2p.assumedBitrateKbps", "4000"));
+    }
+
+    /** Upper bound on concurrent requests a stream sends to one peer. */
+    public static int peerMaxInFlight() {
+        return Integer.parseInt(System.getProperty("p2p.peerMaxInFlight", "4"));
+    }
+
+    /** Missing-chunk count at which a stream starts requesting the same chunk from several peers. */
+    public static int endgameThreshold() {
+        return Integer.parseInt(System.getProperty("p2p.endgameThreshold", "4"));
+    }
+
+    /** Max peers racing for one chunk during endgame. */
+    public static int endgameCopies() {
+        return Integer.parseInt(System.getProperty("p2p.endgameCopies", "2"));
+    }
+
+    /** How often a stream persists its chunk bitmap for resuming; 0 disables resume. */
+    public static int resumeFlushMs() {
+        return Integer.parseInt(System.getProperty("p2p.resumeFlushMs", "1000"));
+    }
+
+    /** "channel" (positional writes on one FileChannel, default) or "mmap" for stream buffer files. */
+    public static String outputWriter() {
+        return System.getProperty("p2p.outputWriter", "channel");
+    }
+
+    /** Failed fetches of one chunk after which a stream gives up (and keeps its resume state). */
+    public static int chunkMaxAttempts() {
+        return Integer.parseInt(System.getProperty("p2p.chunkMaxAttempts", "12"));
+    }
+
+    /** Loopback port of the HTTP server players open active streams from; 0 picks a free port. */
+    public static int httpPort() {
+        return Integer.parseInt(System.getProperty("p2p.httpPort", "0"));
+    }
+
+    /** How long an HTTP read waits for a chunk that has not arrived yet. */
+    public static int httpReadTimeoutMs() {
+        return Integer.parseInt(System.getProperty("p2p.httpReadTimeoutMs", "15000"));
+    }
+
+    /** Cancel in-flight single-chunk requests behind the new position when a stream seeks. */
+    public static boolean seekCancelBehind() {
+        return Boolean.parseBoolean(System.getProperty("p2p.seekCancelBehind", "true"));
+    }
+
+    /** Download workers shared by all streams in platform-thread mode. */
+    public static int transferWorkers() {
+        return Integer.parseInt(System.getProperty("p2p.transferWorkers", "8"));
+    }
+
+    /** Upper bound on concurrent requests to one peer across all streams. */
+    public static int peerMaxInFlightGlobal() {
+        return Integer.parseInt(System.getProperty("p2p.peerMaxInFlightGlobal", "6"));
+    }
+
+    /** Total download budget in KiB/s across all streams; 0 means unlimited. */
+    public static int maxDownloadKBps() {
+        return Integer.parseInt(System.getProperty("p2p.maxDownloadKBps", "0"));
+    }
+
+    /** Download budget in KiB/s for background streams; 0 means unlimited. */
+    public static int backgroundMaxKBps() {
+        return Integer.parseInt(System.getProperty("p2p.backgroundMaxKBps", "0"));
+    }
+
+    /** Consecutive failed requests after which a stream quarantines a peer. */
+    public static int breakerFailures() {
+        return Integer.parseInt(System.getProperty("p2p.breakerFailures", "5"));
+    }
+
+    /** First quarantine period; doubles (up to a minute) each time the probe after it fails. */
+    public static int breakerCooldownMs() {
+        return Integer.parseInt(System.getProperty("p2p.breakerCooldownMs", "5000"));
+    }
+
+    /** How often a stream asks its partial sources which chunks they gained. */
+    public static int havePollMs() {
+        return Integer.parseInt(System.getProperty("p2p.havePollMs", "2000"));
+    }
+
+    /** Files hashed at once while building the local catalog. */
+    public static int hashThreads() {
+        int def = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return Integer.parseInt(System.getProperty("p2p.hashThreads", String.valueOf(def)));
+    }
+
     public static InetAddress localHost() {
         try {
             return InetAddress.getLocalHost();
@@ -1,39 +1,117 @@
 package edu.yeditepe.cse471.p2p.util;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
 
 public final class HashUtil {
     private HashUtil() {}
 
+    // Large sequential reads keep the disk streaming; a multiple of the chunk size in practice.
+    private static final int READ_BUFFER = 4 * 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     public static String sha256Hex(Path file) throws IOException {
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        MessageDigest md = sha256();
+        read(file, null, (buf, len) -> md.update(buf, 0, len));
+        return toHex(md.digest());
+    }
+
+    public static String sha256Hex(byte[] data, int off, int len) {
+        MessageDigest md = sha256();
+        md.update(data, off, len);
+        return toHex(md.digest());
+    }
+
+    /**
+     * Whole-file SHA-256 plus the SHA-256 of every {@code chunkSize} slice,
+     * computed in one pass over the file.
+     */
+    public static FileHashes hashFile(Path file, int chunkSize) throws IOException {
+        return hashFile(file, chunkSize, null);
+    }
+
+    /** As {@link #hashFile(Path, int)}, passing the size of every read to {@code onRead} for progress. */
+    public static FileHashes hashFile(Path file, int chunkSize, LongConsumer onRead) throws IOException {
+        MessageDigest whole = sha256();
+        MessageDigest chunk = sha256();
+        List<String> chunkHashes = new ArrayList<>();
+        long[] inChunk = {0};
+
+        read(file, onRead, (buf, read) -> {
+            whole.update(buf, 0, read);
+            int off = 0;
+            while (off < read) {
+                int n = (int) Math.min(read - off, chunkSize - inChunk[0]);
+                chunk.update(buf, off, n);
+                off += n;
+                inChunk[0] += n;
+                if (inChunk[0] == chunkSize) {
+                    chunkHashes.add(toHex(chunk.digest()));
+                    inChunk[0] = 0;
+                }
+            }
+        });
+        if (inChunk[0] > 0) chunkHashes.add(toHex(chunk.digest()));
+
+        return new FileHashes(toHex(whole.digest()), chunkHashes);
+    }
+
+    /**
+     * SHA-256 over a chunk hash list (each hex hash followed by a newline).
+     * Catalogs publish this instead of the list, and a list fetched later is
+     * accepted only if it hashes to the published value.
+     */
+    public static String chunkListHash(List<String> chunkHashes) {
+        MessageDigest md = sha256();
+        for (String h : chunkHashes) {
+            md.update(h.getBytes(StandardCharsets.US_ASCII));
+            md.update((byte) '\n');
         }
+        return toHex(md.digest());
+    }
+
+    public record FileHashes(String contentHash, List<String> chunkHashes) {}
+
+    private interface Sink {
+        void accept(byte[] buf, int len);
+    }
 
-        try (InputStream in = Files.newInputStream(file)) {
-            byte[] buf = new byte[1024 * 1024];
+    private static void read(Path file, LongConsumer onRead, Sink sink) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] buf = new byte[(int) Math.min(READ_BUFFER, Math.max(8192, in.size()))];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
             int read;
-            while ((read = in.read(buf)) >= 0) {
+            while ((read = in.read(bb.clear())) >= 0) {
                 if (read == 0) continue;
-                md.update(buf, 0, read);
+                if (onRead != null) onRead.accept(read);
+                sink.accept(buf, read);
             }
         }
+    }
 
-        return toHex(md.digest());
+    /** A fresh SHA-256 digest, e.g. to hash a file piece by piece as it arrives. */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private static String toHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder(bytes.length * 2);
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX[bytes[i] & 0xf];
         }
-        return sb.toString();
+        return new String(out);
     }
 }
@@ -0,0 +1,84 @@
+package edu.yeditepe.cse471.p2p.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads used for blocking socket I/O. With
+ * {@code -Dp2p.executorMode=virtual} they are virtual threads (JDK 21+);
+ * otherwise, or when the runtime has no virtual threads, platform threads.
+ * Virtual threads are looked up reflectively so the code still runs on 17.
+ */
+public final class Threads {
+    private Threads() {}
+
+    private static final Logger log = LoggerFactory.getLogger(Threads.class);
+
+    private static final boolean VIRTUAL = "virtual".equalsIgnoreCase(AppConfig.executorMode()) && virtualSupported();
+
+    public static boolean virtualEnabled() {
+        return VIRTUAL;
+    }
+
+    /** Named thread factory for the configured mode. Platform threads are daemons. */
+    public static ThreadFactory factory(String namePrefix) {
+        if (VIRTUAL) return virtualFactory(namePrefix);
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, namePrefix + "-" + seq.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Executor for blocking tasks. Virtual mode starts one virtual thread per
+     * task, so callers must bound concurrency themselves; platform mode uses a
+     * fixed pool of {@code platformThreads}, or a cached pool when it is 0.
+     */
+    public static ExecutorService newBlockingExecutor(String namePrefix, int platformThreads) {
+        if (VIRTUAL) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, virtualFactory(namePrefix));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads unavailable", e);
+            }
+        }
+        if (platformThreads <= 0) return Executors.newCachedThreadPool(factory(namePrefix));
+        return Executors.newFixedThreadPool(platformThreads, factory(namePrefix));
+    }
+
+    public static Thread start(String name, Runnable task) {
+        Thread t = factory(name).newThread(task);
+        t.setName(name);
+        t.start();
+        return t;
+    }
+
+    private static ThreadFactory virtualFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix + "-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads unavailable", e);
+        }
+    }
+
+    private static boolean virtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            log.warn("p2p.executorMode=virtual needs JDK 21+; falling back to platform threads");
+            return false;
+        }
+    }
+}